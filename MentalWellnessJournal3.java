@@ -1,8 +1,54 @@
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.spec.KeySpec;
 import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
 import java.util.*;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.management.*;
+import jdk.jfr.*;
 
 // ================= ENUM for Moods =================
 enum Mood {
@@ -10,7 +56,7 @@ enum Mood {
 
     @Override
     public String toString() {
-        return name().substring(0, 1) + name().substring(1).toLowerCase();
+        return name().substring(0, 1) + name().substring(1).toLowerCase(Locale.ROOT);
     }
 }
 
@@ -18,11 +64,258 @@ enum Mood {
 class SimpleCipher {
     private static final int KEY = 42;
     public static String encrypt(String data) {
+        long t0 = System.nanoTime();
         StringBuilder encrypted = new StringBuilder();
         for (char c : data.toCharArray()) encrypted.append((char) (c ^ KEY));
-        return encrypted.toString();
+        String out = encrypted.toString();
+        Metrics.CIPHER.stop(t0);
+        return out;
     }
     public static String decrypt(String data) { return encrypt(data); }
+    // Same key applied to raw bytes, used by the binary journal format
+    public static void xor(byte[] data) {
+        long t0 = System.nanoTime();
+        for (int i = 0; i < data.length; i++) data[i] ^= KEY;
+        Metrics.CIPHER.stop(t0);
+    }
+}
+
+// ================= Metrics =================
+// Process-wide counters and latency histograms for the hot paths, read through dump(), the
+// "journal:type=Metrics" MBean or JFR. Recording allocates nothing: a timer bumps striped
+// histogram buckets and LongAdders, and builds a JFR event only while a recording has it enabled.
+// Per-entry timers are too frequent for an event per call; JFR gets their percentiles from the
+// periodic "journal.Metrics" event instead.
+final class Metrics {
+    static final Timer LOAD = new Timer("load", true), SAVE = new Timer("save", true),
+            COMPACTION = new Timer("compaction", true), STATISTICS = new Timer("statistics", true),
+            GROUP_COMMIT = new Timer("groupCommit", true), IMPORT = new Timer("import", true),
+            DESERIALIZE = new Timer("deserialize", false), DECODE = new Timer("decode", false),
+            CIPHER = new Timer("cipher", false), ANALYZE_MOOD = new Timer("analyzeMood", false);
+    static final Timer[] TIMERS = {LOAD, SAVE, COMPACTION, STATISTICS, GROUP_COMMIT, IMPORT, DESERIALIZE, DECODE, CIPHER, ANALYZE_MOOD};
+    static final LongAdder BYTES_READ = new LongAdder(), BYTES_WRITTEN = new LongAdder(), ENTRIES_PARSED = new LongAdder();
+    private static boolean registered;
+
+    private Metrics() {}
+
+    // Log-linear buckets: values below 8 ns exactly, then 8 per power of two (at most 12.5% off).
+    // Rows are striped by thread so parallel loaders do not contend on one cache line.
+    static final class Histogram {
+        static final int SUB_BITS = 3, SUB = 1 << SUB_BITS, BUCKETS = (64 - SUB_BITS) * SUB, STRIPES = 8;
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS * STRIPES);
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long nanos) {
+            if (nanos < 0) nanos = 0;
+            int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+            counts.incrementAndGet(stripe * BUCKETS + bucket(nanos));
+            long m;
+            while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos)) { }
+        }
+
+        static int bucket(long v) {
+            if (v < SUB) return (int) v;
+            int msb = 63 - Long.numberOfLeadingZeros(v);
+            return (msb - SUB_BITS + 1) * SUB + (int) ((v >>> (msb - SUB_BITS)) & (SUB - 1));
+        }
+
+        // Largest value that falls into bucket b
+        static long upperBound(int b) {
+            if (b < SUB) return b;
+            int shift = b / SUB - 1;
+            return ((long) (SUB + b % SUB) << shift) + (1L << shift) - 1;
+        }
+
+        long[] snapshot() {
+            long[] merged = new long[BUCKETS];
+            for (int i = 0; i < counts.length(); i++) merged[i % BUCKETS] += counts.get(i);
+            return merged;
+        }
+
+        // Upper bound of the bucket holding the p-th value of the snapshot, capped at the max
+        long percentile(long[] snap, long total, double p) {
+            if (total == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(p * total)), seen = 0;
+            for (int b = 0; b < snap.length; b++)
+                if ((seen += snap[b]) >= rank) return Math.min(upperBound(b), max.get());
+            return max.get();
+        }
+
+        long max() { return max.get(); }
+
+        void reset() {
+            for (int i = 0; i < counts.length(); i++) counts.set(i, 0);
+            max.set(0);
+        }
+    }
+
+    // long t0 = System.nanoTime(); ... Metrics.X.stop(t0);
+    static final class Timer {
+        final String name;
+        final boolean events; // a JFR event per call
+        final Histogram histogram = new Histogram();
+        private final LongAdder count = new LongAdder(), totalNanos = new LongAdder();
+
+        Timer(String name, boolean events) { this.name = name; this.events = events; }
+
+        void stop(long start) { stop(start, 0); }
+
+        void stop(long start, long bytes) {
+            long elapsed = System.nanoTime() - start;
+            count.increment();
+            totalNanos.add(elapsed);
+            histogram.record(elapsed);
+            if (events && OperationEvent.TYPE.isEnabled()) {
+                OperationEvent e = new OperationEvent();
+                e.operation = name;
+                e.elapsed = elapsed;
+                e.bytes = bytes;
+                e.commit();
+            }
+        }
+
+        long count() { return count.sum(); }
+        long totalNanos() { return totalNanos.sum(); }
+        void reset() { count.reset(); totalNanos.reset(); histogram.reset(); }
+    }
+
+    @Name("journal.Operation") @Label("Journal Operation") @Category("Mental Wellness Journal") @StackTrace(false)
+    static class OperationEvent extends Event {
+        static final EventType TYPE = EventType.getEventType(OperationEvent.class);
+        @Label("Operation") String operation;
+        @Label("Elapsed") @Timespan long elapsed;
+        @Label("Bytes") @DataAmount long bytes;
+    }
+
+    @Name("journal.Metrics") @Label("Journal Metrics") @Category("Mental Wellness Journal") @StackTrace(false) @Period("10 s")
+    static class MetricsEvent extends Event {
+        @Label("Operation") String operation;
+        @Label("Count") long count;
+        @Label("p50") @Timespan long p50;
+        @Label("p99") @Timespan long p99;
+        @Label("p999") @Timespan long p999;
+        @Label("Max") @Timespan long max;
+    }
+
+    private static void emitPeriodic() {
+        for (Timer t : TIMERS) {
+            long[] snap = t.histogram.snapshot();
+            long total = 0;
+            for (long c : snap) total += c;
+            if (total == 0) continue;
+            MetricsEvent e = new MetricsEvent();
+            e.operation = t.name;
+            e.count = total;
+            e.p50 = t.histogram.percentile(snap, total, 0.5);
+            e.p99 = t.histogram.percentile(snap, total, 0.99);
+            e.p999 = t.histogram.percentile(snap, total, 0.999);
+            e.max = t.histogram.max();
+            e.commit();
+        }
+    }
+
+    // Publishes the MBean and the periodic JFR event; later calls do nothing
+    static synchronized void register() {
+        if (registered) return;
+        registered = true;
+        FlightRecorder.addPeriodicEvent(MetricsEvent.class, Metrics::emitPeriodic);
+        try { ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), new ObjectName("journal:type=Metrics")); }
+        catch (JMException e) { System.out.println("Could not register the metrics MBean: " + e.getMessage()); }
+    }
+
+    static void reset() {
+        for (Timer t : TIMERS) t.reset();
+        BYTES_READ.reset(); BYTES_WRITTEN.reset(); ENTRIES_PARSED.reset();
+    }
+
+    static String dump() {
+        StringBuilder sb = new StringBuilder(String.format("%-12s %10s %10s %10s %10s %10s %10s%n", "operation", "count", "mean", "p50", "p99", "p999", "max"));
+        for (Timer t : TIMERS) {
+            long[] snap = t.histogram.snapshot();
+            long total = 0;
+            for (long c : snap) total += c;
+            Histogram h = t.histogram;
+            sb.append(String.format("%-12s %10d %10s %10s %10s %10s %10s%n", t.name, total,
+                    formatNanos(total == 0 ? 0 : t.totalNanos() / Math.max(1, t.count())),
+                    formatNanos(h.percentile(snap, total, 0.5)), formatNanos(h.percentile(snap, total, 0.99)),
+                    formatNanos(h.percentile(snap, total, 0.999)), formatNanos(h.max())));
+        }
+        sb.append("bytes read: ").append(BYTES_READ.sum()).append(", bytes written: ").append(BYTES_WRITTEN.sum())
+          .append(", entries parsed: ").append(ENTRIES_PARSED.sum()).append(System.lineSeparator());
+        return sb.toString();
+    }
+
+    static String formatNanos(long n) {
+        if (n < 1_000) return n + " ns";
+        if (n < 1_000_000) return String.format("%.1f us", n / 1e3);
+        if (n < 1_000_000_000) return String.format("%.1f ms", n / 1e6);
+        return String.format("%.2f s", n / 1e9);
+    }
+}
+
+// Attributes <timer>Count and <timer>P50 / P99 / P999 / Max in nanoseconds, one set per timer,
+// plus BytesRead, BytesWritten and EntriesParsed; operations dump() and reset()
+class MetricsMBean implements DynamicMBean {
+    private static final String[] STATS = {"Count", "P50", "P99", "P999", "Max"};
+
+    @Override public Object getAttribute(String name) throws AttributeNotFoundException {
+        switch (name) {
+            case "BytesRead": return Metrics.BYTES_READ.sum();
+            case "BytesWritten": return Metrics.BYTES_WRITTEN.sum();
+            case "EntriesParsed": return Metrics.ENTRIES_PARSED.sum();
+        }
+        for (Metrics.Timer t : Metrics.TIMERS) {
+            if (!name.startsWith(t.name) || name.length() == t.name.length()) continue;
+            String stat = name.substring(t.name.length());
+            long[] snap = t.histogram.snapshot();
+            long total = 0;
+            for (long c : snap) total += c;
+            switch (stat) {
+                case "Count": return total;
+                case "P50": return t.histogram.percentile(snap, total, 0.5);
+                case "P99": return t.histogram.percentile(snap, total, 0.99);
+                case "P999": return t.histogram.percentile(snap, total, 0.999);
+                case "Max": return t.histogram.max();
+            }
+        }
+        throw new AttributeNotFoundException(name);
+    }
+
+    @Override public AttributeList getAttributes(String[] names) {
+        AttributeList list = new AttributeList();
+        for (String n : names) {
+            try { list.add(new Attribute(n, getAttribute(n))); }
+            catch (AttributeNotFoundException e) { /* left out, as the interface allows */ }
+        }
+        return list;
+    }
+
+    @Override public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+    }
+
+    @Override public AttributeList setAttributes(AttributeList attributes) { return new AttributeList(); }
+
+    @Override public Object invoke(String action, Object[] params, String[] signature) throws ReflectionException {
+        switch (action) {
+            case "dump": return Metrics.dump();
+            case "reset": Metrics.reset(); return null;
+            default: throw new ReflectionException(new NoSuchMethodException(action));
+        }
+    }
+
+    @Override public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attrs = new ArrayList<>();
+        for (String n : new String[]{"BytesRead", "BytesWritten", "EntriesParsed"})
+            attrs.add(new MBeanAttributeInfo(n, "long", n, true, false, false));
+        for (Metrics.Timer t : Metrics.TIMERS)
+            for (String s : STATS)
+                attrs.add(new MBeanAttributeInfo(t.name + s, "long", t.name + (s.equals("Count") ? " calls" : " latency in ns"), true, false, false));
+        MBeanOperationInfo[] ops = {
+            new MBeanOperationInfo("dump", "Text table of all metrics", new MBeanParameterInfo[0], "java.lang.String", MBeanOperationInfo.INFO),
+            new MBeanOperationInfo("reset", "Zero all metrics", new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION)};
+        return new MBeanInfo(getClass().getName(), "Journal hot-path metrics", attrs.toArray(new MBeanAttributeInfo[0]), null, ops, null);
+    }
 }
 
 // ================= Journal Entry =================
@@ -31,84 +324,3732 @@ class JournalEntry {
     private Date endTime;
     private Mood mood;
     private String note;
-    private List<String> tags;
+    private TagDictionary tagDict;
+    private int[] tagIds;
+    private String[] tagNames; // tags of an entry built outside a journal, until bindTags
     private long durationMinutes;
+    private long id = -1; // assigned by JournalManager, ascending in journal order
 
+    // Entries built outside a journal keep their tag names until the manager binds them
     public JournalEntry(Date startTime, Date endTime, Mood mood, String note, List<String> tags) {
+        this(startTime, endTime, mood, note, null, (int[]) null);
+        this.tagNames = tags.toArray(new String[0]);
+    }
+
+    JournalEntry(Date startTime, Date endTime, Mood mood, String note, TagDictionary tagDict, List<String> tags) {
+        this(startTime, endTime, mood, note, tagDict, tagDict.internAll(tags));
+    }
+
+    JournalEntry(Date startTime, Date endTime, Mood mood, String note, TagDictionary tagDict, int[] tagIds) {
         this.startTime = startTime;
         this.endTime = endTime;
         this.mood = mood;
         this.note = note;
-        this.tags = tags;
+        this.tagDict = tagDict;
+        this.tagIds = tagIds;
+        calculateDuration();
+    }
+
+    public void setFeedback(String note, Date endTime) {
+        this.note = note;
+        this.endTime = endTime;
         calculateDuration();
     }
 
-    public void setFeedback(String note, Date endTime) {
-        this.note = note;
-        this.endTime = endTime;
-        calculateDuration();
+    private void calculateDuration() {
+        if (startTime != null && endTime != null)
+            this.durationMinutes = (endTime.getTime() - startTime.getTime()) / (1000 * 60);
+        else
+            this.durationMinutes = 0;
+    }
+
+    public Date getStartTime() { return startTime; }
+    public Date getEndTime() { return endTime; }
+    public Mood getMood() { return mood; }
+    public String getNote() { return note; }
+    public long getDurationMinutes() { return durationMinutes; }
+    public List<String> getTags() { return tagNames != null ? new ArrayList<>(Arrays.asList(tagNames)) : tagDict.names(tagIds); }
+    // Ids in getTagDictionary(), in tag order; shared, not to be modified
+    int[] tagIds() { return tagIds; }
+    TagDictionary getTagDictionary() { return tagDict; }
+
+    // This entry's tag ids in dict, interning tags dict has not seen
+    int[] tagIdsIn(TagDictionary dict) {
+        if (tagNames != null) return dict.internAll(Arrays.asList(tagNames));
+        if (dict == tagDict) return tagIds;
+        int[] ids = new int[tagIds.length];
+        for (int i = 0; i < ids.length; i++) ids[i] = dict.intern(tagDict.name(tagIds[i]));
+        return ids;
+    }
+
+    void bindTags(TagDictionary dict) { tagIds = tagIdsIn(dict); tagDict = dict; tagNames = null; }
+
+    // Turns the file ids of a parseCoded entry into dictionary ids
+    void resolveTags(FileTagCodes codes) {
+        if (tagDict != null || tagNames != null) return;
+        int[] ids = new int[tagIds.length];
+        for (int i = 0; i < ids.length; i++) ids[i] = codes.toDict(tagIds[i]);
+        tagIds = ids;
+        tagDict = codes.dictionary();
+    }
+    public long getId() { return id; }
+    void assignId(long id) { this.id = id; }
+    public boolean needsFeedback() { return note == null || note.isEmpty(); }
+
+    public String toString(int index) {
+        StringBuilder sb = new StringBuilder(160);
+        EntryWriter.appendText(sb, this, index);
+        return sb.toString();
+    }
+
+    public String serialize() { return serialize(String.join(",", getTags())); }
+
+    // Same fields with the tags written as the given file ids, for "I" log records
+    String serialize(int[] fileTagIds) {
+        StringBuilder sb = new StringBuilder(fileTagIds.length * 3);
+        for (int i = 0; i < fileTagIds.length; i++) (i > 0 ? sb.append(',') : sb).append(fileTagIds[i]);
+        return serialize(sb.toString());
+    }
+
+    private String serialize(String tagsStr) {
+        String noteStr = (note != null) ? note.replace(";", ",") : "";
+        long end = (endTime != null) ? endTime.getTime() : 0;
+        return startTime.getTime() + ";" + end + ";" + mood.name() + ";" + noteStr + ";" + tagsStr;
+    }
+
+    public static JournalEntry deserialize(String line) { return parse(SimpleCipher.decrypt(line)); }
+    static JournalEntry deserialize(String line, TagDictionary dict) { return parse(SimpleCipher.decrypt(line), dict); }
+
+    // Parses an already decrypted serialize() line into a detached entry
+    public static JournalEntry parse(String plain) { return parse(plain, null); }
+
+    static JournalEntry parse(String plain, TagDictionary dict) {
+        long t0 = System.nanoTime();
+        String[] parts = plain.split(";",5);
+        if (parts.length < 5) return null;
+        String[] tags = parts[4].isEmpty() ? new String[0] : parts[4].split(",");
+        if (dict == null) {
+            JournalEntry e = fields(parts, null, null, t0);
+            e.tagNames = tags;
+            return e;
+        }
+        int[] ids = new int[tags.length];
+        for (int i = 0; i < ids.length; i++) ids[i] = dict.intern(tags[i]);
+        return fields(parts, dict, ids, t0);
+    }
+
+    // Parses serialize(int[]) output; the tags stay file ids until resolveTags
+    static JournalEntry parseCoded(String plain) {
+        long t0 = System.nanoTime();
+        String[] parts = plain.split(";",5);
+        if (parts.length < 5) return null;
+        String[] codes = parts[4].isEmpty() ? new String[0] : parts[4].split(",");
+        int[] ids = new int[codes.length];
+        for (int i = 0; i < ids.length; i++) ids[i] = Integer.parseInt(codes[i]);
+        return fields(parts, null, ids, t0);
+    }
+
+    private static JournalEntry fields(String[] parts, TagDictionary dict, int[] tagIds, long t0) {
+        Date start = new Date(Long.parseLong(parts[0]));
+        Date end = (Long.parseLong(parts[1]) == 0) ? null : new Date(Long.parseLong(parts[1]));
+        Mood mood = Mood.valueOf(parts[2]);
+        String note = parts[3].isEmpty() ? null : parts[3];
+        JournalEntry e = new JournalEntry(start,end,mood,note,dict,tagIds);
+        Metrics.DESERIALIZE.stop(t0);
+        Metrics.ENTRIES_PARSED.increment();
+        return e;
+    }
+}
+
+// ================= Tag Dictionary =================
+// Per-journal tag interning: each distinct tag gets a small int id, entries keep int[] ids and
+// tag filters compare ints. Ids are never reused, so they stay valid while the journal is open.
+class TagDictionary {
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] names = new String[4];
+    private int size;
+
+    // Lock-free for known tags, which is nearly every call once a journal is loaded
+    int intern(String tag) {
+        Integer id = ids.get(tag);
+        return id != null ? id : add(tag);
+    }
+
+    private synchronized int add(String tag) {
+        Integer id = ids.get(tag);
+        if (id != null) return id;
+        String[] n = names;
+        if (size == n.length) n = Arrays.copyOf(n, size * 2);
+        n[size] = tag;
+        names = n;
+        ids.put(tag, size);
+        return size++;
+    }
+
+    int idOf(String tag) { Integer id = ids.get(tag); return id != null ? id : -1; }
+    String name(int id) { return names[id]; }
+    int size() { return ids.size(); }
+
+    int[] internAll(List<String> tags) {
+        int[] out = new int[tags.size()];
+        for (int i = 0; i < out.length; i++) out[i] = intern(tags.get(i));
+        return out;
+    }
+
+    List<String> names(int[] tagIds) {
+        String[] n = names;
+        List<String> out = new ArrayList<>(tagIds.length);
+        for (int id : tagIds) out.add(n[id]);
+        return out;
+    }
+}
+
+// Tag numbering inside one journal file: the n-th "T;name" record defines file id n, and "I"
+// records refer to tags by file id. Each file keeps its own numbering, so appending to it never
+// depends on the order the dictionary happened to intern tags in.
+class FileTagCodes {
+    private final TagDictionary dict;
+    private int[] toDict = new int[16];  // file id -> dictionary id
+    private int[] toFile = new int[16];  // dictionary id -> file id + 1; 0 while undefined
+    private int count;
+
+    FileTagCodes(TagDictionary dict) { this.dict = dict; }
+
+    TagDictionary dictionary() { return dict; }
+    int size() { return count; }
+
+    // Reading: a "T" record
+    void define(String name) { define(dict.intern(name)); }
+
+    int toDict(int fileId) {
+        if (fileId < 0 || fileId >= count) throw new IllegalArgumentException("undefined tag " + fileId);
+        return toDict[fileId];
+    }
+
+    // Writing: JournalLog emits a "T" record before the first entry using a tag
+    boolean isDefined(int dictId) { return dictId < toFile.length && toFile[dictId] != 0; }
+
+    void define(int dictId) {
+        if (isDefined(dictId)) return;
+        if (count == toDict.length) toDict = Arrays.copyOf(toDict, count * 2);
+        if (dictId >= toFile.length) toFile = Arrays.copyOf(toFile, Math.max(toFile.length * 2, dictId + 1));
+        toDict[count] = dictId;
+        toFile[dictId] = ++count;
+    }
+
+    int[] encode(int[] dictIds) {
+        int[] out = new int[dictIds.length];
+        for (int i = 0; i < out.length; i++) out[i] = toFile[dictIds[i]] - 1;
+        return out;
+    }
+}
+
+// ================= Append-only Journal Log =================
+// NEVER leaves flushing to the OS, ON_SAVE fsyncs at option 7, EVERY_RECORD fsyncs each mutation,
+// GROUP queues mutations in memory and lets the GroupCommitter write and fsync them in batches
+enum FsyncPolicy { NEVER, ON_SAVE, EVERY_RECORD, GROUP }
+
+// Each mutation is one line at the end of the journal file:
+//   '#' + escaped(encrypt("N;" + id + ";" + entry.serialize(fileTagIds)))   added entry, tags as file ids
+//   '#' + escaped(encrypt("T;" + tag))   defines the next file tag id, before its first use
+//   '#' + escaped(encrypt("U;" + id + ";" + endMillis + ";" + note))   feedback set
+//   '#' + escaped(encrypt("X;" + id))   entry deleted (tombstone)
+// Entries keep their id for life, so update and tombstone records stay valid on top of any
+// snapshot that still holds the entry. Older files may also hold position-based records:
+//   "I;" + entry.serialize(fileTagIds) and "A;" + entry.serialize() adds without an id,
+//   "F;" + index + ";" + endMillis + ";" + note and "D;" + index
+// Lines without the '#' mark are old full-rewrite lines and replay as adds.
+// The XOR cipher turns ' ' into '\n' and '\'' into '\r', so marked lines escape those.
+// With a JournalCrypto the same records are written unmarked and unescaped into AES-GCM blocks.
+// The writer and channel are guarded by io, so the group committer and a shutdown hook can sync
+// from their own threads; GROUP appends only touch the queue, under the log's monitor.
+// A failed write or fsync may leave any of the pending records out of the file, so the log then
+// refuses further records rather than write them after the gap; the next save rewrites the journal.
+class JournalLog implements Closeable {
+    static final char MARK = '#';
+    static final Set<JournalLog> OPEN = ConcurrentHashMap.newKeySet();
+    private final String filename;
+    private final FsyncPolicy policy;
+    private final FileChannel channel;
+    private final Writer writer;
+    private final EncryptedOutputStream encrypted; // null for XOR text journals
+    private final boolean plain;
+    private final FileTagCodes codes; // tag ids already defined in this file
+    private final Object io = new Object();
+    private long records;
+    private long flushedSize;         // file size at the last flush, for Metrics.BYTES_WRITTEN
+    private StringBuilder queued = new StringBuilder(), spare = new StringBuilder(); // GROUP batches
+    private int queuedRecords;
+    private boolean commitRequested;
+    private ScheduledFuture<?> commitTask;
+    private volatile IOException failure;
+
+    JournalLog(String filename, FsyncPolicy policy, long existingRecords, FileTagCodes codes) throws IOException {
+        this(filename, policy, existingRecords, codes, null);
+    }
+
+    JournalLog(String filename, FsyncPolicy policy, long existingRecords, FileTagCodes codes, JournalCrypto crypto) throws IOException {
+        this.filename = filename;
+        this.policy = policy;
+        this.records = existingRecords;
+        this.codes = codes;
+        this.plain = crypto != null;
+        OutputStream out;
+        if (crypto == null) {
+            FileOutputStream fos = new FileOutputStream(filename, true);
+            channel = fos.getChannel();
+            out = fos;
+            encrypted = null;
+        } else {
+            channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            out = encrypted = EncryptedJournalFile.appender(channel, crypto);
+        }
+        this.writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        this.flushedSize = channel.size();
+        OPEN.add(this);
+        if (policy == FsyncPolicy.GROUP) commitTask = GroupCommitter.schedule(this);
+    }
+
+    String getFilename() { return filename; }
+    FsyncPolicy getPolicy() { return policy; }
+    long getRecords() { return records; }
+    FileTagCodes getCodes() { return codes; }
+
+    void appendEntry(JournalEntry e) throws IOException {
+        for (String record : entryRecords(e, codes)) append(record);
+    }
+
+    // The "T" records for tags new to the file, then the "N" record; marks the tags defined
+    static List<String> entryRecords(JournalEntry e, FileTagCodes codes) {
+        List<String> out = new ArrayList<>(1);
+        int[] tags = e.tagIdsIn(codes.dictionary());
+        for (int id : tags) {
+            if (codes.isDefined(id)) continue;
+            out.add("T;" + codes.dictionary().name(id));
+            codes.define(id);
+        }
+        out.add("N;" + e.getId() + ";" + e.serialize(codes.encode(tags)));
+        return out;
+    }
+
+    void append(String record) throws IOException {
+        checkFailed();
+        String line = plain ? record : encode(record);
+        records++;
+        if (policy == FsyncPolicy.GROUP) { queue(line); return; }
+        synchronized (io) {
+            try {
+                writer.write(line);
+                writer.write('\n');
+                if (policy == FsyncPolicy.EVERY_RECORD) force();
+                else if (policy == FsyncPolicy.NEVER) flush();
+            } catch (IOException e) { throw failed(e); }
+        }
+    }
+
+    boolean isFailed() { return failure != null; }
+
+    private void checkFailed() throws IOException {
+        IOException f = failure;
+        if (f != null) throw new IOException("journal log stopped after a failed write (" + f.getMessage() + "); save to rewrite the journal", f);
+    }
+
+    private IOException failed(IOException e) {
+        failure = e;
+        return e;
+    }
+
+    private void queue(String line) {
+        boolean full;
+        synchronized (this) {
+            queued.append(line).append('\n');
+            full = ++queuedRecords >= GroupCommitter.BATCH_RECORDS && !commitRequested;
+            if (full) commitRequested = true;
+        }
+        if (full) GroupCommitter.commitSoon(this);
+    }
+
+    // Writes everything queued so far with one write and one fsync; appends queue up meanwhile.
+    // A failed batch is not retried: part of it may already be in the file.
+    void commit() throws IOException {
+        synchronized (io) {
+            checkFailed();
+            StringBuilder batch;
+            synchronized (this) {
+                commitRequested = false;
+                if (queuedRecords == 0) return;
+                batch = queued;
+                queued = spare;
+                queuedRecords = 0;
+            }
+            long t0 = System.nanoTime();
+            try {
+                writer.append(batch);
+                force();
+            } catch (IOException e) { throw failed(e); }
+            Metrics.GROUP_COMMIT.stop(t0, batch.length());
+            batch.setLength(0);
+            spare = batch;
+        }
+    }
+
+    // Called at save time: O(pending records), not O(journal)
+    void sync() throws IOException {
+        if (policy == FsyncPolicy.GROUP) { commit(); return; }
+        synchronized (io) {
+            checkFailed();
+            try {
+                if (policy == FsyncPolicy.NEVER) { flush(); seal(); }
+                else force();
+            } catch (IOException e) { throw failed(e); }
+        }
+    }
+
+    private void force() throws IOException {
+        flush();
+        seal();
+        channel.force(false);
+    }
+
+    // Encrypted text stays buffered until a block fills; this seals the remainder
+    private void seal() throws IOException {
+        if (encrypted == null) return;
+        encrypted.sealPending();
+        updateWritten();
+    }
+
+    private void flush() throws IOException {
+        writer.flush();
+        updateWritten();
+    }
+
+    private void updateWritten() throws IOException {
+        long size = channel.size();
+        Metrics.BYTES_WRITTEN.add(size - flushedSize);
+        flushedSize = size;
+    }
+
+    // Rewriting pays off once most records are superseded by later ones
+    boolean needsCompaction(int liveEntries) { return records > Math.max(1024, 2L * liveEntries); }
+
+    // A failed log drops what it still buffers: those records would land after the gap
+    @Override
+    public void close() throws IOException {
+        if (commitTask != null) commitTask.cancel(false);
+        OPEN.remove(this);
+        if (failure != null) { channel.close(); return; }
+        sync();
+        synchronized (io) { writer.close(); }
+    }
+
+    static String encode(String record) {
+        String enc = SimpleCipher.encrypt(record);
+        StringBuilder sb = new StringBuilder(enc.length() + 8).append(MARK);
+        for (int i = 0; i < enc.length(); i++) {
+            char c = enc.charAt(i);
+            if (c == '\\') sb.append("\\\\");
+            else if (c == '\n') sb.append("\\n");
+            else if (c == '\r') sb.append("\\r");
+            else sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    // Returns the plain record of a marked line, or null for an old unmarked line
+    static String decode(String line) {
+        if (line.isEmpty() || line.charAt(0) != MARK) return null;
+        StringBuilder sb = new StringBuilder(line.length());
+        for (int i = 1; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '\\' && i + 1 < line.length()) {
+                char n = line.charAt(++i);
+                sb.append(n == 'n' ? '\n' : n == 'r' ? '\r' : n);
+            } else sb.append(c);
+        }
+        return SimpleCipher.decrypt(sb.toString());
+    }
+
+    static String updateRecord(JournalEntry e) {
+        long end = (e.getEndTime() != null) ? e.getEndTime().getTime() : 0;
+        String note = (e.getNote() != null) ? e.getNote().replace(";", ",") : "";
+        return "U;" + e.getId() + ";" + end + ";" + note;
+    }
+    static String tombstoneRecord(long id) { return "X;" + id; }
+
+    // Parses an "N" record; the tags stay file ids until resolveTags
+    static JournalEntry parseAdd(String record) {
+        int sep = record.indexOf(';', 2);
+        JournalEntry e = JournalEntry.parseCoded(record.substring(sep + 1));
+        if (e != null) e.assignId(Long.parseLong(record.substring(2, sep)));
+        return e;
+    }
+
+    // Entries from records without an id take the one after the last entry's
+    static void add(List<JournalEntry> entries, JournalEntry e) {
+        if (e.getId() < 0) e.assignId(entries.isEmpty() ? 0 : idAt(entries, entries.size() - 1) + 1);
+        entries.add(e);
+    }
+
+    static long idAt(List<JournalEntry> entries, int i) {
+        return (entries instanceof EntryColumns) ? ((EntryColumns) entries).idAt(i) : entries.get(i).getId();
+    }
+
+    // Ids ascend in journal order, so an id is found by binary search; -1 if it is gone
+    static int positionOf(List<JournalEntry> entries, long id) {
+        int lo = 0, hi = entries.size() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long v = idAt(entries, mid);
+            if (v < id) lo = mid + 1;
+            else if (v > id) hi = mid - 1;
+            else return mid;
+        }
+        return -1;
+    }
+
+    // Applies one plain record to the entry list; false if the record is malformed,
+    // e.g. the torn tail of a write interrupted by a crash
+    static boolean replay(String record, List<JournalEntry> entries, FileTagCodes codes) {
+        try { return apply(record, entries, codes); }
+        catch (RuntimeException e) { return false; }
+    }
+
+    private static boolean apply(String record, List<JournalEntry> entries, FileTagCodes codes) {
+        String[] parts = record.split(";", 4);
+        switch (parts[0]) {
+            case "A":
+            case "I":
+            case "N": {
+                JournalEntry e = parts[0].equals("N") ? parseAdd(record)
+                        : parts[0].equals("A") ? JournalEntry.parse(record.substring(2), codes.dictionary()) : JournalEntry.parseCoded(record.substring(2));
+                if (e == null) return false;
+                e.resolveTags(codes);
+                add(entries, e);
+                return true;
+            }
+            case "U": {
+                if (parts.length < 4) return false;
+                int idx = positionOf(entries, Long.parseLong(parts[1]));
+                if (idx < 0) return false;
+                long end = Long.parseLong(parts[2]);
+                JournalEntry e = entries.get(idx);
+                e.setFeedback(parts[3].isEmpty() ? null : parts[3], end == 0 ? null : new Date(end));
+                entries.set(idx, e);
+                return true;
+            }
+            case "X": {
+                int idx = positionOf(entries, Long.parseLong(parts[1]));
+                if (idx < 0) return false;
+                entries.remove(idx);
+                return true;
+            }
+            case "T": {
+                if (record.length() < 3) return false;
+                codes.define(record.substring(2));
+                return true;
+            }
+            case "F": {
+                if (parts.length < 4) return false;
+                int idx = Integer.parseInt(parts[1]);
+                if (idx < 0 || idx >= entries.size()) return false;
+                long end = Long.parseLong(parts[2]);
+                JournalEntry e = entries.get(idx);
+                e.setFeedback(parts[3].isEmpty() ? null : parts[3], end == 0 ? null : new Date(end));
+                entries.set(idx, e); // columnar stores hand out copies
+                return true;
+            }
+            case "D": {
+                int idx = Integer.parseInt(parts[1]);
+                if (idx < 0 || idx >= entries.size()) return false;
+                entries.remove(idx);
+                return true;
+            }
+            default: return false;
+        }
+    }
+}
+
+// ================= Group Commit =================
+// One daemon thread commits the queued records of every GROUP log, every INTERVAL_MILLIS or as
+// soon as a log has queued BATCH_RECORDS, so a burst of edits shares one write and fsync.
+// At most the last interval of edits is lost on a crash; syncAll runs from the shutdown hook.
+final class GroupCommitter {
+    static final long INTERVAL_MILLIS = Long.getLong("journal.groupCommitMillis", 200);
+    static final int BATCH_RECORDS = Integer.getInteger("journal.groupCommitRecords", 64);
+    private static final ScheduledExecutorService WORKER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "journal-group-commit");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private GroupCommitter() {}
+
+    static ScheduledFuture<?> schedule(JournalLog log) {
+        return WORKER.scheduleWithFixedDelay(() -> commit(log), INTERVAL_MILLIS, INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    static void commitSoon(JournalLog log) { WORKER.execute(() -> commit(log)); }
+
+    private static void commit(JournalLog log) {
+        try { log.commit(); }
+        catch (IOException e) { System.out.println("Error writing journal log: " + e.getMessage()); }
+    }
+
+    // Flushes every open log whatever its policy; queued GROUP records are written and fsynced
+    static void syncAll() {
+        for (JournalLog log : JournalLog.OPEN) {
+            try { log.sync(); }
+            catch (IOException e) { System.out.println("Error writing journal log: " + e.getMessage()); }
+        }
+    }
+}
+
+// ================= Entry Lists =================
+// Base of the journal's entry lists. remove(i) only marks the entry's slot dead, and the dead
+// slots are swept out in one pass once they outnumber the live ones, so a delete costs
+// O(log n) instead of shifting every later entry down. While any slot is dead, positions are
+// mapped to slots through a Fenwick tree of live counts; after a sweep they are slots again.
+abstract class TombstoneEntryList extends AbstractList<JournalEntry> implements RandomAccess {
+    private int slots, dead;
+    private final BitSet deadSlots = new BitSet();
+    private int[] live = new int[0]; // Fenwick tree over the live flags, 1-based; kept while dead > 0
+
+    // Slot storage for subclasses. insertSlot runs with slots() already counting the new slot,
+    // truncateSlots(n) drops slots n and up before slots() shrinks to n.
+    abstract JournalEntry getSlot(int s);
+    abstract void setSlot(int s, JournalEntry e);
+    abstract void insertSlot(int s, JournalEntry e);
+    abstract void killSlot(int s);
+    abstract void moveSlot(int from, int to);
+    abstract void truncateSlots(int n);
+
+    // The live entries in a list of its own, for a compaction to write while this one changes
+    abstract TombstoneEntryList copy();
+
+    final int slots() { return slots; }
+
+    // For subclasses that filled slots 0..n-1 themselves, all live
+    final void adoptSlots(int n) {
+        slots = n;
+        dead = 0;
+        deadSlots.clear();
+    }
+
+    @Override public int size() { return slots - dead; }
+
+    // Slot of the entry at position i
+    final int slot(int i) {
+        if (dead == 0) return i;
+        int pos = 0;
+        for (int step = Integer.highestOneBit(slots); step > 0; step >>= 1) {
+            int next = pos + step;
+            if (next <= slots && live[next] <= i) { pos = next; i -= live[next]; }
+        }
+        return pos;
+    }
+
+    @Override public JournalEntry get(int i) {
+        Objects.checkIndex(i, size());
+        return getSlot(slot(i));
+    }
+
+    @Override public JournalEntry set(int i, JournalEntry e) {
+        Objects.checkIndex(i, size());
+        int s = slot(i);
+        JournalEntry old = getSlot(s);
+        setSlot(s, e);
+        return old;
+    }
+
+    // Appends take the next slot; an insert before the end sweeps first so later slots can shift
+    @Override public void add(int i, JournalEntry e) {
+        Objects.checkIndex(i, size() + 1);
+        if (i < size()) sweep();
+        int s = dead == 0 ? i : slots;
+        slots++;
+        insertSlot(s, e);
+        if (dead > 0) appendLive();
+        modCount++;
+    }
+
+    @Override public JournalEntry remove(int i) {
+        Objects.checkIndex(i, size());
+        int s = slot(i);
+        JournalEntry old = getSlot(s);
+        if (dead == 0) buildLive();
+        deadSlots.set(s);
+        dead++;
+        for (int k = s + 1; k <= slots; k += k & -k) live[k]--;
+        killSlot(s);
+        modCount++;
+        if (dead > size()) sweep();
+        return old;
+    }
+
+    @Override public void clear() {
+        truncateSlots(0);
+        adoptSlots(0);
+        modCount++;
+    }
+
+    // Moves the live entries down over the dead slots, keeping their order
+    final void sweep() {
+        if (dead == 0) return;
+        int to = 0;
+        for (int s = deadSlots.nextClearBit(0); s < slots; s = deadSlots.nextClearBit(s + 1)) {
+            if (s != to) moveSlot(s, to);
+            to++;
+        }
+        truncateSlots(to);
+        adoptSlots(to);
+    }
+
+    // Every slot is live when the first one dies
+    private void buildLive() {
+        if (live.length <= slots) live = new int[slots + (slots >> 1) + 16];
+        else Arrays.fill(live, 0);
+        for (int k = 1; k <= slots; k++) {
+            live[k]++;
+            int parent = k + (k & -k);
+            if (parent <= slots) live[parent] += live[k];
+        }
+    }
+
+    // Node slots covers (slots - lowbit, slots]: the new live slot plus the ones before it
+    private void appendLive() {
+        int k = slots;
+        if (k >= live.length) live = Arrays.copyOf(live, k + (k >> 1) + 16);
+        live[k] = 1 + prefix(k - 1) - prefix(k - (k & -k));
+    }
+
+    private int prefix(int k) {
+        int sum = 0;
+        for (; k > 0; k -= k & -k) sum += live[k];
+        return sum;
+    }
+}
+
+// One JournalEntry object per entry, the default for text journals
+class ObjectEntryList extends TombstoneEntryList {
+    private JournalEntry[] items = new JournalEntry[16];
+
+    @Override JournalEntry getSlot(int s) { return items[s]; }
+    @Override void setSlot(int s, JournalEntry e) { items[s] = e; }
+
+    @Override void insertSlot(int s, JournalEntry e) {
+        int n = slots();
+        if (n > items.length) items = Arrays.copyOf(items, items.length * 2);
+        System.arraycopy(items, s, items, s + 1, n - 1 - s);
+        items[s] = e;
+    }
+
+    @Override void killSlot(int s) { items[s] = null; }
+    @Override void moveSlot(int from, int to) { items[to] = items[from]; }
+    @Override void truncateSlots(int n) { Arrays.fill(items, n, slots(), null); }
+
+    // Shares the entry objects; O(size) array copy
+    @Override ObjectEntryList copy() {
+        sweep();
+        ObjectEntryList c = new ObjectEntryList();
+        c.items = Arrays.copyOf(items, Math.max(16, slots()));
+        c.adoptSlots(slots());
+        return c;
+    }
+}
+
+// ================= Binary Journal Format =================
+// Version 2 layout, big-endian, all offsets absolute:
+//   header   magic "MWJB", version, count, tagCount, generation, tagTable, records, tagIds, notes (9 ints)
+//   tagTable tagCount x (u16 length + XOR'd UTF-8 bytes); a tag's id is its position
+//   records  count x 40 bytes: start millis, end millis (0 = none), mood ordinal byte,
+//            tag count byte, 2 pad bytes, first tag id slot, note offset, note length (-1 = pending),
+//            entry id
+//   tagIds   int tag ids referenced by the records
+//   notes    XOR'd UTF-8 note bytes
+// Version 1 records are 32 bytes without the id; their entries take the record number as id.
+// The file is read through FileChannel.map, so a load only parses the header and tag table;
+// entries are decoded when first accessed. The snapshot is never modified in place: mutations
+// go to log segments "<file>.<generation>.log", "<file>.<generation>.<n>.log", n = 1, 2, ...
+// and a compaction writes the next generation's snapshot (see JournalManager).
+class MappedJournal {
+    static final int MAGIC = 0x4D574A42;
+    static final int VERSION = 2;
+    static final int HEADER_SIZE = 36;
+    static final int RECORD_SIZE = 40, V1_RECORD_SIZE = 32;
+    private static final Mood[] MOODS = Mood.values();
+
+    private final ByteBuffer buf;
+    private final int count, generation, records, tagIds, notes, recordSize;
+    private final TagDictionary dict;
+    private final int[] tagMap; // tag table position -> dictionary id
+
+    private MappedJournal(ByteBuffer buf, TagDictionary dict) throws IOException {
+        this.buf = buf;
+        this.dict = dict;
+        if (buf.getInt(0) != MAGIC) throw new IOException("Not a binary journal");
+        int version = buf.getInt(4);
+        if (version != VERSION && version != 1) throw new IOException("Unsupported binary journal version " + version);
+        recordSize = version == 1 ? V1_RECORD_SIZE : RECORD_SIZE;
+        count = buf.getInt(8);
+        tagMap = new int[buf.getInt(12)];
+        generation = buf.getInt(16);
+        int pos = buf.getInt(20);
+        records = buf.getInt(24);
+        tagIds = buf.getInt(28);
+        notes = buf.getInt(32);
+        for (int i = 0; i < tagMap.length; i++) {
+            int len = buf.getShort(pos) & 0xFFFF;
+            tagMap[i] = dict.intern(readString(pos + 2, len));
+            pos += 2 + len;
+        }
+    }
+
+    static boolean isBinary(File f) {
+        if (f.length() < HEADER_SIZE) return false;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(f))) { return in.readInt() == MAGIC; }
+        catch (IOException e) { return false; }
+    }
+
+    static MappedJournal open(File f, TagDictionary dict) throws IOException {
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            if (ch.size() > Integer.MAX_VALUE) throw new IOException("Binary journal larger than 2 GB");
+            return new MappedJournal(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()), dict);
+        }
+    }
+
+    int size() { return count; }
+    int getGeneration() { return generation; }
+    long startMillis(int i) { return buf.getLong(records + i * recordSize); }
+    long endMillis(int i) { return buf.getLong(records + i * recordSize + 8); }
+    boolean hasNote(int i) { return buf.getInt(records + i * recordSize + 28) > 0; }
+    Mood mood(int i) { return MOODS[buf.get(records + i * recordSize + 16)]; }
+    long id(int i) { return recordSize == V1_RECORD_SIZE ? i : buf.getLong(records + i * recordSize + 32); }
+
+    int[] tagIds(int i) {
+        int r = records + i * recordSize;
+        int[] tags = new int[buf.get(r + 17) & 0xFF];
+        int tagSlot = buf.getInt(r + 20);
+        for (int t = 0; t < tags.length; t++) tags[t] = tagMap[buf.getInt(tagIds + (tagSlot + t) * 4)];
+        return tags;
+    }
+
+    JournalEntry decode(int i) {
+        long t0 = System.nanoTime();
+        int r = records + i * recordSize;
+        long start = buf.getLong(r), end = buf.getLong(r + 8);
+        int noteOff = buf.getInt(r + 24), noteLen = buf.getInt(r + 28);
+        int[] tags = tagIds(i);
+        String note = (noteLen < 0) ? null : readString(notes + noteOff, noteLen);
+        JournalEntry e = new JournalEntry(new Date(start), end == 0 ? null : new Date(end), MOODS[buf.get(r + 16)], note, dict, tags);
+        e.assignId(id(i));
+        Metrics.DECODE.stop(t0);
+        Metrics.ENTRIES_PARSED.increment();
+        return e;
+    }
+
+    private String readString(int pos, int len) {
+        byte[] b = new byte[len];
+        buf.get(pos, b);
+        SimpleCipher.xor(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    static String segmentFile(String filename, int generation, int seq) {
+        return filename + "." + generation + (seq == 0 ? "" : "." + seq) + ".log";
+    }
+
+    // The existing segments of one generation, in replay order
+    static List<File> segments(String filename, int generation) {
+        List<File> out = new ArrayList<>();
+        for (int seq = 0; ; seq++) {
+            File f = new File(segmentFile(filename, generation, seq));
+            if (!f.exists()) return out;
+            out.add(f);
+        }
+    }
+
+    // Last segment first, so an interrupted cleanup leaves a prefix the next one still finds
+    static void deleteSegments(String filename, int generation) throws IOException {
+        List<File> segs = segments(filename, generation);
+        for (int i = segs.size() - 1; i >= 0; i--) Files.deleteIfExists(segs.get(i).toPath());
+    }
+
+    // Writes a complete snapshot to a temp file and renames it over filename
+    // The tag table holds the dictionary tags in use, numbered in order of first use.
+    // Lazy lists are read with peek, so writing a snapshot does not decode it into memory.
+    static void write(List<JournalEntry> entries, TagDictionary dict, String filename, int generation) throws IOException {
+        LazyEntryList lazy = (entries instanceof LazyEntryList) ? (LazyEntryList) entries : null;
+        FileTagCodes table = new FileTagCodes(dict);
+        byte[][] noteBytes = new byte[entries.size()][];
+        int tagSlots = 0, tagTableSize = 0, notesSize = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            JournalEntry e = lazy != null ? lazy.peek(i) : entries.get(i);
+            int[] tags = e.tagIdsIn(dict);
+            if (tags.length > 255) throw new IOException("Entry " + (i + 1) + " has more than 255 tags");
+            for (int t : tags) {
+                if (!table.isDefined(t)) {
+                    table.define(t);
+                    tagTableSize += 2 + dict.name(t).getBytes(StandardCharsets.UTF_8).length;
+                }
+            }
+            tagSlots += tags.length;
+            if (e.getNote() != null) {
+                noteBytes[i] = e.getNote().getBytes(StandardCharsets.UTF_8);
+                SimpleCipher.xor(noteBytes[i]);
+                notesSize += noteBytes[i].length;
+            }
+        }
+        long recordsPos = HEADER_SIZE + (long) tagTableSize;
+        long tagIdsPos = recordsPos + (long) entries.size() * RECORD_SIZE;
+        long notesPos = tagIdsPos + 4L * tagSlots;
+        if (notesPos + notesSize > Integer.MAX_VALUE) throw new IOException("Binary journal would exceed 2 GB");
+
+        Path target = Paths.get(filename).toAbsolutePath();
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp.toFile(), false);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16))) {
+            out.writeInt(MAGIC); out.writeInt(VERSION); out.writeInt(entries.size()); out.writeInt(table.size());
+            out.writeInt(generation); out.writeInt(HEADER_SIZE); out.writeInt((int) recordsPos);
+            out.writeInt((int) tagIdsPos); out.writeInt((int) notesPos);
+            for (int i = 0; i < table.size(); i++) {
+                String t = dict.name(table.toDict(i));
+                byte[] b = t.getBytes(StandardCharsets.UTF_8);
+                if (b.length > 0xFFFF) throw new IOException("Tag too long: " + t.substring(0, 32));
+                SimpleCipher.xor(b);
+                out.writeShort(b.length); out.write(b);
+            }
+            int slot = 0, noteOff = 0;
+            for (int i = 0; i < entries.size(); i++) {
+                JournalEntry e = lazy != null ? lazy.peek(i) : entries.get(i);
+                out.writeLong(e.getStartTime().getTime());
+                out.writeLong(e.getEndTime() != null ? e.getEndTime().getTime() : 0);
+                int tagCount = e.tagIdsIn(dict).length;
+                out.writeByte(e.getMood().ordinal()); out.writeByte(tagCount); out.writeShort(0);
+                out.writeInt(slot); out.writeInt(noteOff);
+                out.writeInt(noteBytes[i] != null ? noteBytes[i].length : -1);
+                out.writeLong(e.getId());
+                slot += tagCount;
+                if (noteBytes[i] != null) noteOff += noteBytes[i].length;
+            }
+            for (int i = 0; i < entries.size(); i++) {
+                JournalEntry e = lazy != null ? lazy.peek(i) : entries.get(i);
+                for (int id : table.encode(e.tagIdsIn(dict))) out.writeInt(id);
+            }
+            for (byte[] b : noteBytes) if (b != null) out.write(b);
+            out.flush();
+            fos.getFD().sync();
+        }
+        Metrics.BYTES_WRITTEN.add(Files.size(tmp));
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Converter from the text journal (old lines and log records) to a binary snapshot
+    // binFile only appears, through write()'s temp file and rename, once the text journal loaded;
+    // a half-read journal must not leave a snapshot that later runs would take as converted
+    static void convert(String textFile, String binFile) throws IOException {
+        if (JournalCrypto.isEncrypted(new File(textFile))) throw new IOException(textFile + " is encrypted; binary journals are not");
+        JournalManager m = new JournalManager();
+        m.loadFromFile(textFile);
+        if (m.isLoadFailed()) throw new IOException(textFile + " could not be read; nothing converted");
+        m.saveBinary(binFile);
+    }
+}
+
+// Entry list over a mapped journal: entries decode on first get() and are cached from then on,
+// so feedback set on them sticks. Added entries live only in the cache.
+class LazyEntryList extends TombstoneEntryList implements EntryColumns {
+    private final MappedJournal source;
+    private int[] recordIdx;
+    private JournalEntry[] cache;
+
+    LazyEntryList(MappedJournal source) {
+        this.source = source;
+        int size = source.size();
+        this.recordIdx = new int[Math.max(size, 10)];
+        this.cache = new JournalEntry[recordIdx.length];
+        for (int i = 0; i < size; i++) recordIdx[i] = i;
+        adoptSlots(size);
+    }
+
+    // Column reads that skip decoding, for aggregates built over the whole journal
+    @Override public long startMillisAt(int i) { int s = slot(i); return cache[s] != null ? cache[s].getStartTime().getTime() : source.startMillis(recordIdx[s]); }
+    @Override public long endMillisAt(int i) {
+        int s = slot(i);
+        if (cache[s] == null) return source.endMillis(recordIdx[s]);
+        return cache[s].getEndTime() != null ? cache[s].getEndTime().getTime() : 0;
+    }
+    @Override public Mood moodAt(int i) { int s = slot(i); return cache[s] != null ? cache[s].getMood() : source.mood(recordIdx[s]); }
+    @Override public boolean needsFeedbackAt(int i) { int s = slot(i); return cache[s] != null ? cache[s].needsFeedback() : !source.hasNote(recordIdx[s]); }
+    @Override public long idAt(int i) { int s = slot(i); return cache[s] != null ? cache[s].getId() : source.id(recordIdx[s]); }
+    @Override public int[] tagIdsAt(int i) { int s = slot(i); return cache[s] != null ? cache[s].tagIds() : source.tagIds(recordIdx[s]); }
+
+    @Override JournalEntry getSlot(int s) {
+        if (cache[s] == null) cache[s] = source.decode(recordIdx[s]);
+        return cache[s];
+    }
+
+    // Decodes without caching, for one pass over the whole journal such as an export
+    JournalEntry peek(int i) {
+        Objects.checkIndex(i, size());
+        int s = slot(i);
+        return cache[s] != null ? cache[s] : source.decode(recordIdx[s]);
+    }
+
+    // Same entries in a list of its own; O(size) array copies, nothing is decoded
+    @Override LazyEntryList copy() {
+        sweep();
+        LazyEntryList c = new LazyEntryList(source);
+        c.recordIdx = recordIdx.clone();
+        c.cache = cache.clone();
+        c.adoptSlots(slots());
+        return c;
+    }
+
+    @Override void setSlot(int s, JournalEntry e) { cache[s] = e; }
+
+    @Override void insertSlot(int s, JournalEntry e) {
+        int n = slots();
+        if (n > recordIdx.length) {
+            recordIdx = Arrays.copyOf(recordIdx, n + (n >> 1));
+            cache = Arrays.copyOf(cache, recordIdx.length);
+        }
+        System.arraycopy(recordIdx, s, recordIdx, s + 1, n - 1 - s);
+        System.arraycopy(cache, s, cache, s + 1, n - 1 - s);
+        recordIdx[s] = -1;
+        cache[s] = e;
+    }
+
+    @Override void killSlot(int s) { cache[s] = null; }
+
+    @Override void moveSlot(int from, int to) {
+        recordIdx[to] = recordIdx[from];
+        cache[to] = cache[from];
+    }
+
+    @Override void truncateSlots(int n) { Arrays.fill(cache, n, slots(), null); }
+}
+
+// ================= Columnar Entry Store =================
+// Entry lists that can answer per-entry column reads without building JournalEntry objects
+interface EntryColumns {
+    long idAt(int i);
+    long startMillisAt(int i);
+    long endMillisAt(int i); // 0 while feedback is pending
+    Mood moodAt(int i);
+    boolean needsFeedbackAt(int i);
+    int[] tagIdsAt(int i); // dictionary ids, possibly shared: not to be modified
+}
+
+// Struct-of-arrays backing store: one primitive array per field, notes in one shared char
+// buffer and tags as dictionary ids in one shared int buffer. get() builds a detached JournalEntry,
+// so changes to it only stick once they are written back with set(), as JournalManager does.
+// Replaced notes and removed tags leave garbage that is compacted once it outweighs live data.
+class ColumnarEntryStore extends TombstoneEntryList implements EntryColumns {
+    private static final Mood[] MOODS = Mood.values();
+    private long[] ids = new long[16], start = new long[16], end = new long[16];
+    private byte[] mood = new byte[16];
+    private int[] noteOff = new int[16], noteLen = new int[16]; // noteLen -1: feedback pending
+    private int[] tagOff = new int[16], tagCount = new int[16];
+    private char[] notes = new char[1024];
+    private int notesUsed, notesGarbage;
+    private int[] tagIds = new int[64];
+    private int tagsUsed, tagsGarbage;
+    private final TagDictionary dict;
+
+    ColumnarEntryStore(TagDictionary dict) { this.dict = dict; }
+
+    @Override public long idAt(int i) { return ids[slot(i)]; }
+    @Override public long startMillisAt(int i) { return start[slot(i)]; }
+    @Override public long endMillisAt(int i) { return end[slot(i)]; }
+    @Override public Mood moodAt(int i) { return MOODS[mood[slot(i)]]; }
+    @Override public boolean needsFeedbackAt(int i) { return noteLen[slot(i)] <= 0; }
+    @Override public int[] tagIdsAt(int i) { int s = slot(i); return Arrays.copyOfRange(tagIds, tagOff[s], tagOff[s] + tagCount[s]); }
+
+    @Override JournalEntry getSlot(int i) {
+        int[] tags = Arrays.copyOfRange(tagIds, tagOff[i], tagOff[i] + tagCount[i]);
+        JournalEntry e = new JournalEntry(new Date(start[i]), end[i] == 0 ? null : new Date(end[i]), MOODS[mood[i]], noteAt(i), dict, tags);
+        e.assignId(ids[i]);
+        return e;
+    }
+
+    private String noteAt(int i) { return noteLen[i] < 0 ? null : new String(notes, noteOff[i], noteLen[i]); }
+
+    @Override void setSlot(int i, JournalEntry e) { write(i, e, false); }
+
+    @Override void insertSlot(int i, JournalEntry e) {
+        if (slots() > ids.length) grow();
+        shift(i, i + 1, slots() - 1 - i);
+        write(i, e, true);
+    }
+
+    // A dead slot holds no note and no tags, so compaction skips it
+    @Override void killSlot(int i) {
+        notesGarbage += Math.max(0, noteLen[i]);
+        tagsGarbage += tagCount[i];
+        noteLen[i] = -1;
+        tagCount[i] = 0;
+        compactIfWasteful();
+    }
+
+    @Override void moveSlot(int from, int to) { shift(from, to, 1); }
+
+    @Override void truncateSlots(int n) { if (n == 0) notesUsed = notesGarbage = tagsUsed = tagsGarbage = 0; }
+
+    private void write(int i, JournalEntry e, boolean fresh) {
+        ids[i] = e.getId();
+        start[i] = e.getStartTime().getTime();
+        end[i] = e.getEndTime() != null ? e.getEndTime().getTime() : 0;
+        mood[i] = (byte) e.getMood().ordinal();
+        if (fresh || !Objects.equals(noteAt(i), e.getNote())) {
+            if (!fresh) notesGarbage += Math.max(0, noteLen[i]);
+            putNote(i, e.getNote());
+        }
+        int[] tags = e.tagIdsIn(dict);
+        if (fresh || !Arrays.equals(tagIds, tagOff[i], tagOff[i] + tagCount[i], tags, 0, tags.length)) {
+            if (!fresh) tagsGarbage += tagCount[i];
+            putTags(i, tags);
+        }
+        compactIfWasteful();
+    }
+
+    private void putNote(int i, String note) {
+        if (note == null) { noteOff[i] = 0; noteLen[i] = -1; return; }
+        if (notesUsed + note.length() > notes.length)
+            notes = Arrays.copyOf(notes, Math.max(notes.length * 2, notesUsed + note.length()));
+        note.getChars(0, note.length(), notes, notesUsed);
+        noteOff[i] = notesUsed;
+        noteLen[i] = note.length();
+        notesUsed += note.length();
+    }
+
+    private void putTags(int i, int[] tags) {
+        if (tagsUsed + tags.length > tagIds.length) tagIds = Arrays.copyOf(tagIds, Math.max(tagIds.length * 2, tagsUsed + tags.length));
+        tagOff[i] = tagsUsed;
+        tagCount[i] = tags.length;
+        System.arraycopy(tags, 0, tagIds, tagsUsed, tags.length);
+        tagsUsed += tags.length;
+    }
+
+    // Same entries in a store of its own; O(size) array copies
+    @Override ColumnarEntryStore copy() {
+        sweep();
+        ColumnarEntryStore c = new ColumnarEntryStore(dict);
+        c.adoptSlots(slots());
+        c.ids = ids.clone(); c.start = start.clone(); c.end = end.clone(); c.mood = mood.clone();
+        c.noteOff = noteOff.clone(); c.noteLen = noteLen.clone(); c.tagOff = tagOff.clone(); c.tagCount = tagCount.clone();
+        c.notes = notes.clone(); c.notesUsed = notesUsed; c.notesGarbage = notesGarbage;
+        c.tagIds = tagIds.clone(); c.tagsUsed = tagsUsed; c.tagsGarbage = tagsGarbage;
+        return c;
+    }
+
+    private void grow() {
+        int n = ids.length * 2;
+        ids = Arrays.copyOf(ids, n); start = Arrays.copyOf(start, n); end = Arrays.copyOf(end, n);
+        mood = Arrays.copyOf(mood, n);
+        noteOff = Arrays.copyOf(noteOff, n); noteLen = Arrays.copyOf(noteLen, n);
+        tagOff = Arrays.copyOf(tagOff, n); tagCount = Arrays.copyOf(tagCount, n);
+    }
+
+    private void shift(int from, int to, int len) {
+        if (len <= 0) return;
+        System.arraycopy(ids, from, ids, to, len); System.arraycopy(start, from, start, to, len);
+        System.arraycopy(end, from, end, to, len); System.arraycopy(mood, from, mood, to, len);
+        System.arraycopy(noteOff, from, noteOff, to, len); System.arraycopy(noteLen, from, noteLen, to, len);
+        System.arraycopy(tagOff, from, tagOff, to, len); System.arraycopy(tagCount, from, tagCount, to, len);
+    }
+
+    private void compactIfWasteful() {
+        if (notesGarbage > 4096 && notesGarbage > notesUsed / 2) {
+            char[] packed = new char[Math.max(1024, notesUsed - notesGarbage)];
+            int used = 0;
+            for (int i = 0; i < slots(); i++) {
+                if (noteLen[i] < 0) continue;
+                System.arraycopy(notes, noteOff[i], packed, used, noteLen[i]);
+                noteOff[i] = used;
+                used += noteLen[i];
+            }
+            notes = packed; notesUsed = used; notesGarbage = 0;
+        }
+        if (tagsGarbage > 4096 && tagsGarbage > tagsUsed / 2) {
+            int[] packed = new int[Math.max(64, tagsUsed - tagsGarbage)];
+            int used = 0;
+            for (int i = 0; i < slots(); i++) {
+                System.arraycopy(tagIds, tagOff[i], packed, used, tagCount[i]);
+                tagOff[i] = used;
+                used += tagCount[i];
+            }
+            tagIds = packed; tagsUsed = used; tagsGarbage = 0;
+        }
+    }
+}
+
+// ================= Authenticated Block Encryption =================
+// Encrypted journal: header "MWJE", version, block size, PBKDF2 iterations, 16-byte salt (32 bytes),
+// then blocks of [int plain length][12-byte nonce][AES-GCM ciphertext + 16-byte tag]. Each block
+// holds up to BLOCK_SIZE bytes of journal text and is sealed on its own, with its block number
+// and length as associated data so blocks cannot be swapped or resized. Blocks are never
+// rewritten: a sync or close seals whatever is buffered as a short block, and a torn block left
+// by a crash is cut off before the next append.
+class JournalCrypto {
+    static final int MAGIC = 0x4D574A45;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int SALT_BYTES = 16, NONCE_BYTES = 12, TAG_BYTES = 16;
+    static final int BLOCK_HEADER = 4 + NONCE_BYTES;
+    static final int BLOCK_SIZE = 64 * 1024;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final SecretKeySpec key;
+    private final byte[] salt;
+    private final int iterations;
+    private final ThreadLocal<Cipher> cipher = ThreadLocal.withInitial(() -> {
+        try { return Cipher.getInstance("AES/GCM/NoPadding"); }
+        catch (GeneralSecurityException e) { throw new IllegalStateException("AES/GCM unavailable", e); }
+    });
+    private final ThreadLocal<ByteBuffer> aad = ThreadLocal.withInitial(() -> ByteBuffer.allocate(12));
+
+    private JournalCrypto(String password, byte[] salt, int iterations) {
+        this.salt = salt;
+        this.iterations = iterations;
+        this.key = new SecretKeySpec(UserStore.pbkdf2(password, salt, iterations), "AES");
+    }
+
+    static JournalCrypto create(String password) {
+        byte[] salt = new byte[SALT_BYTES];
+        RANDOM.nextBytes(salt);
+        return new JournalCrypto(password, salt, UserStore.ITERATIONS);
+    }
+
+    static boolean isEncrypted(File f) {
+        if (f.length() < HEADER_SIZE) return false;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(f))) { return in.readInt() == MAGIC; }
+        catch (IOException e) { return false; }
+    }
+
+    static JournalCrypto open(FileChannel ch, String password) throws IOException {
+        ByteBuffer h = ByteBuffer.allocate(HEADER_SIZE);
+        while (h.hasRemaining()) if (ch.read(h, h.position()) < 0) throw new EOFException("Truncated journal header");
+        if (h.getInt(0) != MAGIC) throw new IOException("Not an encrypted journal");
+        if (h.getInt(4) != VERSION) throw new IOException("Unsupported encrypted journal version " + h.getInt(4));
+        if (h.getInt(8) != BLOCK_SIZE) throw new IOException("Unsupported block size " + h.getInt(8));
+        if (password == null) throw new IOException("Journal is encrypted and no password was given");
+        byte[] salt = new byte[SALT_BYTES];
+        h.get(16, salt);
+        return new JournalCrypto(password, salt, h.getInt(12));
+    }
+
+    // Sharing the salt lets a rewrite keep the derived key instead of running PBKDF2 again
+    void writeHeader(FileChannel ch) throws IOException {
+        ByteBuffer h = ByteBuffer.allocate(HEADER_SIZE);
+        h.putInt(MAGIC).putInt(VERSION).putInt(BLOCK_SIZE).putInt(iterations).put(salt).flip();
+        while (h.hasRemaining()) ch.write(h, h.position());
+    }
+
+    // Seals plain (position to limit) as block number index and puts the whole block into out
+    void encryptBlock(long index, ByteBuffer plain, ByteBuffer out) throws IOException {
+        int len = plain.remaining();
+        byte[] nonce = new byte[NONCE_BYTES];
+        RANDOM.nextBytes(nonce);
+        out.putInt(len).put(nonce);
+        try {
+            Cipher c = cipher.get();
+            c.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BYTES * 8, nonce));
+            c.updateAAD(associatedData(index, len));
+            c.doFinal(plain, out);
+        } catch (GeneralSecurityException e) { throw new IOException("Cannot encrypt journal block " + index, e); }
+    }
+
+    // block holds one whole block as written by encryptBlock; the plain text goes into out
+    void decryptBlock(long index, ByteBuffer block, ByteBuffer out) throws IOException {
+        int len = block.getInt();
+        byte[] nonce = new byte[NONCE_BYTES];
+        block.get(nonce);
+        try {
+            Cipher c = cipher.get();
+            c.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BYTES * 8, nonce));
+            c.updateAAD(associatedData(index, len));
+            c.doFinal(block, out);
+        } catch (javax.crypto.AEADBadTagException e) {
+            throw new IOException("Wrong password or corrupted journal block " + index);
+        } catch (GeneralSecurityException e) { throw new IOException("Cannot decrypt journal block " + index, e); }
+    }
+
+    private ByteBuffer associatedData(long index, int len) {
+        ByteBuffer b = aad.get();
+        b.clear();
+        b.putLong(index).putInt(len).flip();
+        return b;
+    }
+}
+
+// Buffers journal text into BLOCK_SIZE blocks and appends each sealed block to the channel
+class EncryptedOutputStream extends OutputStream {
+    private final FileChannel ch;
+    private final JournalCrypto crypto;
+    private final ByteBuffer plain = ByteBuffer.allocate(JournalCrypto.BLOCK_SIZE);
+    private final ByteBuffer sealed = ByteBuffer.allocate(JournalCrypto.BLOCK_HEADER + JournalCrypto.BLOCK_SIZE + JournalCrypto.TAG_BYTES);
+    private long position;
+    private long nextBlock;
+
+    EncryptedOutputStream(FileChannel ch, JournalCrypto crypto, long position, long nextBlock) {
+        this.ch = ch;
+        this.crypto = crypto;
+        this.position = position;
+        this.nextBlock = nextBlock;
+    }
+
+    @Override public void write(int b) throws IOException {
+        plain.put((byte) b);
+        if (!plain.hasRemaining()) seal();
+    }
+
+    @Override public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, plain.remaining());
+            plain.put(b, off, n);
+            off += n;
+            len -= n;
+            if (!plain.hasRemaining()) seal();
+        }
+    }
+
+    // Text waits for a full block: sealing a short block per flush would cost a block header
+    // and tag per record. Durability points call sealPending instead.
+    @Override public void flush() { }
+
+    // Seals the buffered text as a short block so it reaches the file
+    void sealPending() throws IOException { if (plain.position() > 0) seal(); }
+
+    @Override public void close() throws IOException { sealPending(); ch.close(); }
+
+    private void seal() throws IOException {
+        plain.flip();
+        sealed.clear();
+        crypto.encryptBlock(nextBlock++, plain, sealed);
+        sealed.flip();
+        while (sealed.hasRemaining()) position += ch.write(sealed, position);
+        plain.clear();
+    }
+}
+
+// Reader side: block positions come from a scan of the 4-byte length fields, so any text
+// offset is reached by decrypting only the blocks that cover it.
+class EncryptedJournalFile implements Closeable {
+    final FileChannel ch;
+    final JournalCrypto crypto;
+    private long[] blockPos = new long[16];
+    private long[] plainStart = new long[17];
+    private int blocks;
+    private long end; // first byte after the last complete block
+
+    private EncryptedJournalFile(FileChannel ch, JournalCrypto crypto) throws IOException {
+        this.ch = ch;
+        this.crypto = crypto;
+        scan();
+    }
+
+    static EncryptedJournalFile open(File f, String password) throws IOException {
+        FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+        try { return new EncryptedJournalFile(ch, JournalCrypto.open(ch, password)); }
+        catch (IOException | RuntimeException e) { ch.close(); throw e; }
+    }
+
+    // Appending stream for a channel opened for read and write; writes the header to an empty
+    // file and drops a torn trailing block
+    static EncryptedOutputStream appender(FileChannel ch, JournalCrypto crypto) throws IOException {
+        if (ch.size() == 0) {
+            crypto.writeHeader(ch);
+            return new EncryptedOutputStream(ch, crypto, JournalCrypto.HEADER_SIZE, 0);
+        }
+        EncryptedJournalFile existing = new EncryptedJournalFile(ch, crypto);
+        if (existing.end < ch.size()) ch.truncate(existing.end);
+        return new EncryptedOutputStream(ch, crypto, existing.end, existing.blocks);
+    }
+
+    private void scan() throws IOException {
+        ByteBuffer len = ByteBuffer.allocate(4);
+        long pos = JournalCrypto.HEADER_SIZE, size = ch.size();
+        while (pos + JournalCrypto.BLOCK_HEADER <= size) {
+            len.clear();
+            while (len.hasRemaining()) if (ch.read(len, pos + len.position()) < 0) break;
+            int n = len.getInt(0);
+            long next = pos + JournalCrypto.BLOCK_HEADER + n + JournalCrypto.TAG_BYTES;
+            if (n < 0 || n > JournalCrypto.BLOCK_SIZE || next > size) break;
+            if (blocks == blockPos.length) {
+                blockPos = Arrays.copyOf(blockPos, blocks * 2);
+                plainStart = Arrays.copyOf(plainStart, blocks * 2 + 1);
+            }
+            blockPos[blocks] = pos;
+            plainStart[blocks + 1] = plainStart[blocks] + n;
+            blocks++;
+            pos = next;
+        }
+        end = pos;
+    }
+
+    int blocks() { return blocks; }
+    long plainSize() { return plainStart[blocks]; }
+    boolean hasTornTail() throws IOException { return end < ch.size(); }
+
+    byte[] block(int i) throws IOException {
+        int sealedLen = (int) ((i + 1 < blocks ? blockPos[i + 1] : end) - blockPos[i]);
+        ByteBuffer sealed = ByteBuffer.allocate(sealedLen);
+        while (sealed.hasRemaining()) if (ch.read(sealed, blockPos[i] + sealed.position()) < 0) throw new EOFException();
+        sealed.flip();
+        ByteBuffer out = ByteBuffer.allocate((int) (plainStart[i + 1] - plainStart[i]));
+        crypto.decryptBlock(i, sealed, out);
+        return out.array();
+    }
+
+    // Random access into the journal text
+    byte[] read(long offset, int len) throws IOException {
+        byte[] out = new byte[(int) Math.min(len, Math.max(0, plainSize() - offset))];
+        int i = Arrays.binarySearch(plainStart, 0, blocks + 1, offset);
+        if (i < 0) i = -i - 2;
+        for (int n = 0; n < out.length; i++) {
+            byte[] b = block(i);
+            int from = (int) Math.max(0, offset + n - plainStart[i]);
+            int k = Math.min(b.length - from, out.length - n);
+            System.arraycopy(b, from, out, n, k);
+            n += k;
+        }
+        return out;
+    }
+
+    @Override public void close() throws IOException { ch.close(); }
+}
+
+// ================= Parallel Journal Loader =================
+// Splits a text journal into chunks on newline boundaries, decrypts and parses the chunks on a
+// fork-join pool, then applies them in file order. Bad lines are reported and skipped.
+class ParallelJournalLoader {
+    static final int MIN_CHUNK = 256 * 1024;
+    static final int MAX_CHUNK = 64 * 1024 * 1024;
+    static final int MAX_REPORTED_ERRORS = 1000;
+
+    static class LoadError {
+        final long line;
+        final String message;
+        LoadError(long line, String message) { this.line = line; this.message = message; }
+        @Override public String toString() { return "line " + line + ": " + message; }
+    }
+
+    static class LoadResult {
+        long records;
+        long badLines;
+        final List<LoadError> errors = new ArrayList<>();
+        final FileTagCodes codes;
+        LoadResult(FileTagCodes codes) { this.codes = codes; }
+        void error(long line, String message) {
+            badLines++;
+            if (errors.size() < MAX_REPORTED_ERRORS) errors.add(new LoadError(line, message));
+        }
+    }
+
+    // Parsed lines of one chunk: a JournalEntry to add or an F/D record to replay, per line
+    private static class Chunk {
+        final List<Object> items = new ArrayList<>();
+        int[] itemLines = new int[64];
+        final List<LoadError> errors = new ArrayList<>();
+        int lines, records;
+    }
+
+    // Supplies the text of the whole lines one chunk owns
+    interface ChunkSource { byte[] read() throws IOException; }
+
+    private static class ChunkTask extends RecursiveTask<Chunk> {
+        private static final long serialVersionUID = 1L;
+        private final transient ChunkSource source;
+        private final boolean plain; // encrypted journals hold bare records, not XOR'd lines
+        private final transient TagDictionary dict;
+        ChunkTask(ChunkSource source, boolean plain, TagDictionary dict) { this.source = source; this.plain = plain; this.dict = dict; }
+
+        @Override protected Chunk compute() {
+            Chunk c = new Chunk();
+            String text;
+            try { text = new String(source.read(), StandardCharsets.UTF_8); }
+            catch (IOException e) { throw new UncheckedIOException(e); }
+            int pos = 0, n = text.length();
+            while (pos < n) {
+                int end = pos;
+                while (end < n && text.charAt(end) != '\n' && text.charAt(end) != '\r') end++;
+                c.lines++;
+                parseLine(text.substring(pos, end), plain, dict, c);
+                // Same terminators as BufferedReader.readLine: \n, \r or \r\n
+                pos = (end < n && text.charAt(end) == '\r' && end + 1 < n && text.charAt(end + 1) == '\n') ? end + 2 : end + 1;
+            }
+            return c;
+        }
+
+        // "N" and "I" entries keep file tag ids until merge has seen the "T" records before them
+        private static void parseLine(String line, boolean plain, TagDictionary dict, Chunk c) {
+            if (line.trim().isEmpty()) return;
+            c.records++;
+            try {
+                String record = plain ? line : JournalLog.decode(line);
+                Object item;
+                if (record == null) item = JournalEntry.deserialize(line, dict);
+                else if (record.startsWith("N;")) item = JournalLog.parseAdd(record);
+                else if (record.startsWith("I;")) item = JournalEntry.parseCoded(record.substring(2));
+                else if (record.startsWith("A;")) item = JournalEntry.parse(record.substring(2), dict);
+                else item = record;
+                if (item == null) { c.errors.add(new LoadError(c.lines, "malformed entry")); return; }
+                if (c.items.size() == c.itemLines.length) c.itemLines = Arrays.copyOf(c.itemLines, c.itemLines.length * 2);
+                c.itemLines[c.items.size()] = c.lines;
+                c.items.add(item);
+            } catch (RuntimeException e) {
+                c.errors.add(new LoadError(c.lines, e.getClass().getSimpleName() + (e.getMessage() != null ? " " + e.getMessage() : "")));
+            }
+        }
+    }
+
+    static LoadResult load(File f, List<JournalEntry> entries, TagDictionary dict) throws IOException {
+        return load(f, entries, dict, ForkJoinPool.commonPool());
+    }
+
+    static LoadResult load(File f, List<JournalEntry> entries, TagDictionary dict, ForkJoinPool pool) throws IOException {
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            List<ChunkTask> tasks = new ArrayList<>();
+            long size = ch.size();
+            long target = Math.min(MAX_CHUNK, Math.max(MIN_CHUNK, size / (pool.getParallelism() * 4L)));
+            for (long from = 0; from < size; ) {
+                long to = (size - from <= target) ? size : nextLineStart(ch, from + target, size);
+                long start = from;
+                tasks.add(submit(pool, new ChunkTask(() -> read(ch, start, (int) (to - start)), false, dict)));
+                from = to;
+            }
+            return merge(tasks, entries, dict);
+        }
+    }
+
+    // Chunks are runs of whole blocks; each decrypts in parallel and owns the lines starting in it
+    static LoadResult load(EncryptedJournalFile ef, List<JournalEntry> entries, TagDictionary dict) throws IOException {
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        int perChunk = (int) Math.max(1, Math.min(MAX_CHUNK, Math.max(MIN_CHUNK, ef.plainSize() / (pool.getParallelism() * 4L))) / JournalCrypto.BLOCK_SIZE);
+        List<ChunkTask> tasks = new ArrayList<>();
+        for (int a = 0; a < ef.blocks(); a += perChunk) {
+            int from = a, to = Math.min(ef.blocks(), a + perChunk);
+            tasks.add(submit(pool, new ChunkTask(() -> ownedLines(ef, from, to), true, dict)));
+        }
+        return merge(tasks, entries, dict);
+    }
+
+    private static byte[] ownedLines(EncryptedJournalFile ef, int from, int to) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        for (int i = from; i < to; i++) buf.write(ef.block(i));
+        byte[] data = buf.toByteArray();
+        int start = 0;
+        if (from > 0) {
+            byte[] prev = ef.block(from - 1);
+            if (prev.length > 0 && prev[prev.length - 1] != '\n') {
+                while (start < data.length && data[start] != '\n') start++;
+                if (start == data.length) return new byte[0]; // all of it continues an earlier line
+                start++;
+            }
+        }
+        buf = new ByteArrayOutputStream();
+        buf.write(data, start, data.length - start);
+        // Finish the last line from the following blocks
+        for (int j = to; j < ef.blocks() && buf.size() > 0 && data.length > 0 && data[data.length - 1] != '\n'; j++) {
+            data = ef.block(j);
+            int k = 0;
+            while (k < data.length && data[k] != '\n') k++;
+            buf.write(data, 0, Math.min(k + 1, data.length));
+            if (k < data.length) break;
+        }
+        return buf.toByteArray();
+    }
+
+    private static ChunkTask submit(ForkJoinPool pool, ChunkTask t) { pool.execute(t); return t; }
+
+    // Merges in file order while later chunks are still being parsed
+    private static LoadResult merge(List<ChunkTask> tasks, List<JournalEntry> entries, TagDictionary dict) throws IOException {
+        LoadResult result = new LoadResult(new FileTagCodes(dict));
+        long lineBase = 0;
+        for (ChunkTask t : tasks) {
+            Chunk c;
+            try { c = t.join(); }
+            catch (UncheckedIOException e) { throw e.getCause(); }
+            for (LoadError e : c.errors) result.error(lineBase + e.line, e.message);
+            for (int i = 0; i < c.items.size(); i++) {
+                Object item = c.items.get(i);
+                if (item instanceof JournalEntry) {
+                    JournalEntry e = (JournalEntry) item;
+                    try { e.resolveTags(result.codes); }
+                    catch (IllegalArgumentException ex) { result.error(lineBase + c.itemLines[i], ex.getMessage()); continue; }
+                    JournalLog.add(entries, e);
+                }
+                else if (!JournalLog.replay((String) item, entries, result.codes))
+                    result.error(lineBase + c.itemLines[i], "cannot apply record " + ((String) item).charAt(0));
+            }
+            result.records += c.records;
+            lineBase += c.lines;
+        }
+        return result;
+    }
+
+    // First position after the next '\n' at or after pos
+    private static long nextLineStart(FileChannel ch, long pos, long size) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(8192);
+        while (pos < size) {
+            b.clear();
+            int n = ch.read(b, pos);
+            if (n <= 0) break;
+            for (int i = 0; i < n; i++) if (b.get(i) == '\n') return pos + i + 1;
+            pos += n;
+        }
+        return size;
+    }
+
+    private static byte[] read(FileChannel ch, long from, int len) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(len);
+        while (b.hasRemaining()) if (ch.read(b, from + b.position()) < 0) throw new EOFException();
+        return b.array();
+    }
+}
+
+// ================= Legacy Import =================
+// Converts journals of the original MentalWellnessJournal: plain "epochMillis;mood;note" lines
+// with free-form moods, which v3 cannot read. Lines are read in batches of BATCH_LINES, parsed
+// and mood-mapped on a pool, and written back in file order as v3 log records by the calling
+// thread. At most WINDOW batches per pool thread are in flight, so memory stays constant
+// whatever the file size. A mood label that is not a Mood name is kept as a tag.
+class JournalImporter {
+    enum Format { EMPTY, V1, V3_TEXT, V3_ENCRYPTED, V3_BINARY, UNKNOWN }
+
+    static final int BATCH_LINES = 4096;
+    static final int WINDOW = 2;
+    static final String BACKUP_SUFFIX = ".v1";
+
+    static class Result {
+        long entries, skipped;
+        Path backup; // where migrate kept the original
+        final List<String> errors = new ArrayList<>();
+        void error(long line, String message) {
+            skipped++;
+            if (errors.size() < ParallelJournalLoader.MAX_REPORTED_ERRORS) errors.add("line " + line + ": " + message);
+        }
+    }
+
+    private static class Batch {
+        final long firstLine;
+        final List<String> lines = new ArrayList<>(BATCH_LINES);
+        Batch(long firstLine) { this.firstLine = firstLine; }
+    }
+
+    // Parsed entries of a batch, null where a line was empty or unreadable
+    private static class Parsed {
+        final long firstLine;
+        final JournalEntry[] entries;
+        final String[] errors;
+        Parsed(long firstLine, int n) { this.firstLine = firstLine; entries = new JournalEntry[n]; errors = new String[n]; }
+    }
+
+    // Decided by the first non-empty line: v1 lines start with digits, v3 lines with '#' or with
+    // XOR'd characters, which are never digits
+    static Format detect(File f) throws IOException {
+        if (!f.exists() || f.length() == 0) return Format.EMPTY;
+        if (MappedJournal.isBinary(f)) return Format.V3_BINARY;
+        if (JournalCrypto.isEncrypted(f)) return Format.V3_ENCRYPTED;
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(f), Charset.defaultCharset()))) {
+            String line;
+            while ((line = r.readLine()) != null) {
+                if (line.trim().isEmpty()) continue;
+                if (line.charAt(0) == JournalLog.MARK) return Format.V3_TEXT;
+                if (isV1(line)) return Format.V1;
+                return JournalEntry.deserialize(line) != null ? Format.V3_TEXT : Format.UNKNOWN;
+            }
+        } catch (RuntimeException e) {
+            return Format.UNKNOWN;
+        }
+        return Format.EMPTY;
+    }
+
+    private static boolean isV1(String line) {
+        int sep = line.indexOf(';');
+        if (sep <= 0 || line.indexOf(';', sep + 1) < 0) return false;
+        for (int i = 0; i < sep; i++) if (!Character.isDigit(line.charAt(i)) && line.charAt(i) != ' ') return false;
+        return true;
+    }
+
+    // Migrates a v1 journal in place; the original is kept as Result.backup and never overwritten
+    static Result migrate(File f, ExecutorService pool) throws IOException {
+        Path target = f.toPath().toAbsolutePath();
+        Path tmp = target.resolveSibling(target.getFileName() + ".v3.tmp");
+        try {
+            Result r = convert(f, tmp.toFile(), pool);
+            r.backup = backup(target);
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return r;
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    // <file>.v1, or .v1.1, .v1.2, ... while a different file has the name. An identical copy,
+    // left by a run that stopped before replacing the journal, is reused.
+    private static Path backup(Path target) throws IOException {
+        for (int n = 0; ; n++) {
+            Path backup = target.resolveSibling(target.getFileName() + BACKUP_SUFFIX + (n == 0 ? "" : "." + n));
+            try {
+                Files.copy(target, backup, StandardCopyOption.COPY_ATTRIBUTES);
+                return backup;
+            } catch (FileAlreadyExistsException e) {
+                if (Files.mismatch(target, backup) == -1) return backup;
+            }
+        }
+    }
+
+    // Writes the v1 journal in as a v3 text journal to out; entries take ids in file order
+    static Result convert(File in, File out, ExecutorService pool) throws IOException {
+        long t0 = System.nanoTime();
+        Result result = new Result();
+        TagDictionary dict = new TagDictionary();
+        FileTagCodes codes = new FileTagCodes(dict);
+        ArrayDeque<Future<Parsed>> window = new ArrayDeque<>();
+        int maxInFlight = WINDOW * Runtime.getRuntime().availableProcessors();
+        long[] nextId = {0};
+        // v1 wrote with FileWriter, so its files are in the platform charset
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(in), Charset.defaultCharset()), 1 << 16);
+             FileOutputStream fos = new FileOutputStream(out);
+             Writer writer = new BufferedWriter(new OutputStreamWriter(fos, StandardCharsets.UTF_8), 1 << 16)) {
+            Batch batch = new Batch(1);
+            long lineNo = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNo++;
+                batch.lines.add(line);
+                if (batch.lines.size() == BATCH_LINES) {
+                    submit(batch, dict, pool, window);
+                    batch = new Batch(lineNo + 1);
+                    while (window.size() >= maxInFlight) write(window.poll(), codes, writer, result, nextId);
+                }
+            }
+            if (!batch.lines.isEmpty()) submit(batch, dict, pool, window);
+            while (!window.isEmpty()) write(window.poll(), codes, writer, result, nextId);
+            writer.flush();
+            fos.getFD().sync();
+        } finally {
+            for (Future<Parsed> f : window) f.cancel(true);
+        }
+        Metrics.BYTES_READ.add(in.length());
+        Metrics.BYTES_WRITTEN.add(out.length());
+        Metrics.IMPORT.stop(t0, in.length());
+        return result;
+    }
+
+    private static void submit(Batch batch, TagDictionary dict, ExecutorService pool, ArrayDeque<Future<Parsed>> window) {
+        window.add(pool.submit(() -> {
+            Parsed p = new Parsed(batch.firstLine, batch.lines.size());
+            for (int i = 0; i < p.entries.length; i++) {
+                String line = batch.lines.get(i);
+                if (line.trim().isEmpty()) continue;
+                try { p.entries[i] = parseV1(line, dict); }
+                catch (RuntimeException e) { p.errors[i] = "malformed entry"; }
+            }
+            return p;
+        }));
+    }
+
+    private static void write(Future<Parsed> future, FileTagCodes codes, Writer writer, Result result, long[] nextId) throws IOException {
+        Parsed p;
+        try { p = future.get(); }
+        catch (InterruptedException e) { Thread.currentThread().interrupt(); throw new InterruptedIOException("import interrupted"); }
+        catch (ExecutionException e) { throw new IOException("import failed", e.getCause()); }
+        for (int i = 0; i < p.entries.length; i++) {
+            if (p.errors[i] != null) { result.error(p.firstLine + i, p.errors[i]); continue; }
+            JournalEntry e = p.entries[i];
+            if (e == null) continue;
+            e.assignId(nextId[0]++);
+            for (String record : JournalLog.entryRecords(e, codes)) {
+                writer.write(JournalLog.encode(record));
+                writer.write('\n');
+            }
+            result.entries++;
+        }
+    }
+
+    // "epochMillis;mood;note"; the note may itself hold ';', which v1 wrote but never read back
+    static JournalEntry parseV1(String line, TagDictionary dict) {
+        String[] parts = line.split(";", 3);
+        if (parts.length < 3) throw new IllegalArgumentException("expected 3 fields");
+        Date start = new Date(Long.parseLong(parts[0].trim()));
+        String label = parts[1].trim(), note = parts[2].trim();
+        Mood mood = moodOf(label, note);
+        List<String> tags = new ArrayList<>(1);
+        if (!label.equalsIgnoreCase(mood.name())) {
+            String tag = label.toLowerCase(Locale.ROOT).replaceAll("[^\\p{L}\\p{N}]+", "-").replaceAll("^-+|-+$", "");
+            if (!tag.isEmpty()) tags.add(tag.length() > 32 ? tag.substring(0, 32) : tag);
+        }
+        return new JournalEntry(start, null, mood, note.isEmpty() || note.equals("null") ? null : note, dict, tags);
+    }
+
+    // The label names the mood; a label the analyzer cannot place falls back to the note
+    static Mood moodOf(String label, String note) {
+        for (Mood m : Mood.values()) if (m.name().equalsIgnoreCase(label)) return m;
+        Mood m = MoodAnalyzer.analyzeMood(label);
+        return (m == Mood.NEUTRAL && !note.isEmpty()) ? MoodAnalyzer.analyzeMood(note) : m;
+    }
+
+    // Migrates every v1 journal among paths; directories contribute their *_journal.txt files
+    static void importAll(List<String> paths, PrintStream out) {
+        List<File> files = new ArrayList<>();
+        for (String p : paths) {
+            File f = new File(p);
+            File[] listed = f.isDirectory() ? f.listFiles((d, n) -> n.endsWith("_journal.txt")) : null;
+            if (listed != null) { Arrays.sort(listed); files.addAll(Arrays.asList(listed)); }
+            else files.add(f);
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        long migrated = 0, entries = 0;
+        try {
+            for (File f : files) {
+                try {
+                    Format format = detect(f);
+                    if (format != Format.V1) { out.println(f + ": " + format + ", left as is"); continue; }
+                    Result r = migrate(f, pool);
+                    migrated++;
+                    entries += r.entries;
+                    out.println(f + ": " + r.entries + " entries" + (r.skipped > 0 ? ", " + r.skipped + " unreadable line(s) skipped" : "") + ", original kept as " + r.backup.getFileName());
+                    for (int i = 0; i < Math.min(5, r.errors.size()); i++) out.println("  " + r.errors.get(i));
+                } catch (IOException e) {
+                    out.println(f + ": import failed: " + e.getMessage());
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        out.println("Migrated " + migrated + " journal(s), " + entries + " entries.");
+    }
+}
+
+// ================= Journal Listeners =================
+// Notified by JournalManager after each mutation; loaded() follows a full load or replay
+interface JournalListener {
+    default void loaded(List<JournalEntry> entries) {}
+    default void entryAdded(JournalEntry e) {}
+    default void entryRemoved(JournalEntry e) {}
+    default void feedbackChanged(JournalEntry e, String oldNote, Date oldEndTime) {}
+}
+
+// ================= Pending Feedback =================
+// Entries still waiting for feedback, ordered by start time and kept current by the listener
+// calls, so pending lookups cost O(pending) rather than a journal scan. Once an Alarm is attached,
+// a timer fires a reminder REMIND_BEFORE_MILLIS ahead of the end of each entry's feedback window
+// and an expiry when it closes; windows that closed before then are not announced.
+class PendingFeedback implements JournalListener {
+    interface Alarm {
+        void reminder(long id, long startMillis, long deadline);
+        void expired(long id, long startMillis);
+    }
+
+    static final long WINDOW_MILLIS = Long.getLong("journal.feedbackWindowMinutes", 120) * 60_000;
+    static final long REMIND_BEFORE_MILLIS = Long.getLong("journal.feedbackReminderMinutes", 15) * 60_000;
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "journal-feedback-timer");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final Comparator<Item> BY_START = Comparator.<Item>comparingLong(i -> i.start).thenComparingLong(i -> i.id);
+    private static final Comparator<Item> BY_ALARM = Comparator.<Item>comparingLong(Item::nextAlarm).thenComparingLong(i -> i.id);
+
+    private static final class Item {
+        final long id, start;
+        boolean reminded, expired;
+        Item(long id, long start) { this.id = id; this.start = start; }
+        long nextAlarm() { return reminded ? start + WINDOW_MILLIS : start + WINDOW_MILLIS - REMIND_BEFORE_MILLIS; }
+    }
+
+    private final TreeSet<Item> byStart = new TreeSet<>(BY_START);
+    private final Map<Long, Item> byId = new HashMap<>();
+    private final TreeSet<Item> alarms = new TreeSet<>(BY_ALARM); // items whose window is still open
+    private Alarm alarm;
+    private ScheduledFuture<?> timer;
+    private long timerAt = Long.MAX_VALUE;
+
+    // Pending ids, oldest start first
+    synchronized long[] ids() {
+        long[] out = new long[byStart.size()];
+        int n = 0;
+        for (Item i : byStart) out[n++] = i.id;
+        return out;
+    }
+
+    synchronized int size() { return byStart.size(); }
+    synchronized boolean isExpired(long id) { Item i = byId.get(id); return i != null && i.expired; }
+
+    synchronized void attach(Alarm alarm) {
+        this.alarm = alarm;
+        alarms.clear();
+        long now = System.currentTimeMillis();
+        for (Item i : byStart) track(i, now);
+        reschedule();
+    }
+
+    @Override public synchronized void loaded(List<JournalEntry> entries) {
+        byStart.clear(); byId.clear(); alarms.clear();
+        long now = System.currentTimeMillis();
+        if (entries instanceof EntryColumns) {
+            EntryColumns cols = (EntryColumns) entries;
+            for (int i = 0; i < entries.size(); i++) if (cols.needsFeedbackAt(i)) add(cols.idAt(i), cols.startMillisAt(i), now);
+        } else for (JournalEntry e : entries) if (e.needsFeedback()) add(e.getId(), e.getStartTime().getTime(), now);
+        reschedule();
+    }
+
+    @Override public synchronized void entryAdded(JournalEntry e) {
+        if (!e.needsFeedback()) return;
+        add(e.getId(), e.getStartTime().getTime(), System.currentTimeMillis());
+        reschedule();
+    }
+
+    @Override public synchronized void entryRemoved(JournalEntry e) { remove(e.getId()); }
+
+    @Override public synchronized void feedbackChanged(JournalEntry e, String oldNote, Date oldEndTime) {
+        if (e.needsFeedback()) {
+            if (!byId.containsKey(e.getId())) { add(e.getId(), e.getStartTime().getTime(), System.currentTimeMillis()); reschedule(); }
+        } else remove(e.getId());
+    }
+
+    private void add(long id, long start, long now) {
+        Item i = new Item(id, start);
+        i.expired = start + WINDOW_MILLIS <= now;
+        byStart.add(i);
+        byId.put(id, i);
+        track(i, now);
+    }
+
+    private void track(Item i, long now) {
+        if (alarm == null || i.expired) return;
+        i.reminded = i.nextAlarm() <= now; // too late for the reminder, the expiry still fires
+        alarms.add(i);
+    }
+
+    // A timer left for a removed head just fires early and finds nothing due
+    private void remove(long id) {
+        Item i = byId.remove(id);
+        if (i == null) return;
+        byStart.remove(i);
+        alarms.remove(i);
+    }
+
+    private void reschedule() {
+        if (alarm == null || alarms.isEmpty()) return;
+        long at = alarms.first().nextAlarm();
+        if (timer != null && timerAt <= at) return;
+        if (timer != null) timer.cancel(false);
+        timerAt = at;
+        timer = TIMER.schedule(this::fire, Math.max(0, at - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    }
+
+    // Callbacks run without this lock, so they may call back into the manager
+    private void fire() {
+        List<Runnable> due = new ArrayList<>();
+        Alarm a;
+        synchronized (this) {
+            timer = null;
+            timerAt = Long.MAX_VALUE;
+            a = alarm;
+            long now = System.currentTimeMillis();
+            while (!alarms.isEmpty() && alarms.first().nextAlarm() <= now) {
+                Item i = alarms.pollFirst();
+                if (!i.reminded) {
+                    i.reminded = true;
+                    alarms.add(i);
+                    due.add(() -> a.reminder(i.id, i.start, i.start + WINDOW_MILLIS));
+                } else {
+                    i.expired = true;
+                    due.add(() -> a.expired(i.id, i.start));
+                }
+            }
+            reschedule();
+        }
+        for (Runnable r : due) {
+            try { r.run(); }
+            catch (RuntimeException e) { System.out.println("Feedback reminder failed: " + e); }
+        }
+    }
+}
+
+// ================= Mood Statistics =================
+// Mood and duration totals for one day, week or month, or for the whole journal
+class Rollup {
+    final int[] moods = new int[Mood.values().length]; // by Mood ordinal
+    int count;
+    int ended;        // entries with an end time, the ones durations are averaged over
+    long minutes;     // sum of getDurationMinutes
+
+    void add(Mood mood, long durationMinutes, boolean hasEnd, int delta) {
+        moods[mood.ordinal()] += delta;
+        count += delta;
+        if (hasEnd) { ended += delta; minutes += delta * durationMinutes; }
+    }
+
+    Mood mostCommon() { return MoodStatistics.mostCommon(moods); }
+    long meanMinutes() { return ended == 0 ? 0 : minutes / ended; }
+
+    void write(DataOutputStream out) throws IOException {
+        for (int n : moods) out.writeInt(n);
+        out.writeInt(count); out.writeInt(ended); out.writeLong(minutes);
+    }
+
+    static Rollup read(DataInputStream in) throws IOException {
+        Rollup r = new Rollup();
+        for (int i = 0; i < r.moods.length; i++) r.moods[i] = in.readInt();
+        r.count = in.readInt(); r.ended = in.readInt(); r.minutes = in.readLong();
+        return r;
+    }
+}
+
+// Daily, weekly and monthly rollups plus the overall one, kept up to date by the manager so
+// reports read the aggregates instead of regrouping every entry. Saved next to the journal
+// (see JournalSidecar), so a restart does not have to scan the entries to rebuild them.
+// Keys: epoch day, epoch day of the week's Monday, and year * 12 + month - 1.
+class MoodStatistics implements JournalListener {
+    static final long UNKNOWN_DAY = Long.MAX_VALUE; // entries without a start time
+    private static final Mood[] MOODS = Mood.values();
+    private final ZoneRules zone = ZoneId.systemDefault().getRules();
+    private final TreeMap<Long, Rollup> days = new TreeMap<>(), weeks = new TreeMap<>(), months = new TreeMap<>();
+    private Rollup overall = new Rollup();
+    private Mood mostCommon;
+    // Entries mostly arrive for the day last counted: its rollups, month key and the span of
+    // epoch millis it covers are kept so the add path neither boxes keys nor allocates
+    private final long[] lastKey = new long[3];
+    private final Rollup[] last = new Rollup[3];
+    private long cachedDay, dayFrom, dayTo, monthDay = UNKNOWN_DAY, month;
+
+    @Override public void loaded(List<JournalEntry> entries) {
+        clear();
+        if (entries instanceof EntryColumns) {
+            EntryColumns cols = (EntryColumns) entries;
+            for (int i = 0; i < entries.size(); i++) {
+                long start = cols.startMillisAt(i), end = cols.endMillisAt(i);
+                count(dayOf(start), cols.moodAt(i), end == 0 ? 0 : (end - start) / 60_000, end != 0, 1);
+            }
+        } else for (JournalEntry e : entries) count(e, 1);
+        mostCommon = overall.mostCommon();
+    }
+
+    private void clear() {
+        days.clear(); weeks.clear(); months.clear();
+        Arrays.fill(last, null);
+        overall = new Rollup();
+    }
+
+    @Override public void entryAdded(JournalEntry e) { count(e, 1); mostCommon = overall.mostCommon(); }
+    @Override public void entryRemoved(JournalEntry e) { count(e, -1); mostCommon = overall.mostCommon(); }
+
+    @Override public void feedbackChanged(JournalEntry e, String oldNote, Date oldEndTime) {
+        long day = dayOf(e.getStartTime());
+        long oldMinutes = (oldEndTime != null && e.getStartTime() != null) ? (oldEndTime.getTime() - e.getStartTime().getTime()) / 60_000 : 0;
+        count(day, e.getMood(), oldMinutes, oldEndTime != null, -1);
+        count(day, e.getMood(), e.getDurationMinutes(), e.getEndTime() != null, 1);
+    }
+
+    private void count(JournalEntry e, int delta) {
+        count(dayOf(e.getStartTime()), e.getMood(), e.getDurationMinutes(), e.getEndTime() != null, delta);
+    }
+
+    private void count(long day, Mood mood, long minutes, boolean hasEnd, int delta) {
+        overall.add(mood, minutes, hasEnd, delta);
+        add(0, days, day, mood, minutes, hasEnd, delta);
+        add(1, weeks, weekOf(day), mood, minutes, hasEnd, delta);
+        add(2, months, monthKey(day), mood, minutes, hasEnd, delta);
+    }
+
+    private void add(int t, TreeMap<Long, Rollup> table, long key, Mood mood, long minutes, boolean hasEnd, int delta) {
+        Rollup r = last[t];
+        if (r == null || lastKey[t] != key) {
+            r = table.computeIfAbsent(key, k -> new Rollup());
+            last[t] = r;
+            lastKey[t] = key;
+        }
+        r.add(mood, minutes, hasEnd, delta);
+        if (r.count == 0) { table.remove(key); last[t] = null; }
+    }
+
+    private long monthKey(long day) {
+        if (day != monthDay) { month = monthOf(day); monthDay = day; }
+        return month;
+    }
+
+    long dayOf(Date start) { return start == null ? UNKNOWN_DAY : dayOf(start.getTime()); }
+
+    // The span of the cached day ends early at an offset change, so every hit has its offset
+    long dayOf(long ms) {
+        if (ms >= dayFrom && ms < dayTo) return cachedDay;
+        Instant at = Instant.ofEpochMilli(ms);
+        long offset = zone.getOffset(at).getTotalSeconds() * 1000L;
+        long day = Math.floorDiv(ms + offset, 86_400_000L);
+        long from = day * 86_400_000L - offset, to = from + 86_400_000L;
+        ZoneOffsetTransition before = zone.previousTransition(at), after = zone.nextTransition(at);
+        if (before != null) from = Math.max(from, before.toEpochSecond() * 1000);
+        if (after != null) to = Math.min(to, after.toEpochSecond() * 1000);
+        if (zone.getOffset(Instant.ofEpochMilli(from)).getTotalSeconds() * 1000L != offset) from = ms;
+        cachedDay = day; dayFrom = from; dayTo = to;
+        return day;
+    }
+
+    // Epoch day 0 was a Thursday
+    static long weekOf(long day) { return day == UNKNOWN_DAY ? UNKNOWN_DAY : day - Math.floorMod(day + 3, 7); }
+
+    static long monthOf(long day) {
+        if (day == UNKNOWN_DAY) return UNKNOWN_DAY;
+        LocalDate d = LocalDate.ofEpochDay(day);
+        return d.getYear() * 12L + d.getMonthValue() - 1;
+    }
+
+    static Mood mostCommon(int[] counts) {
+        Mood common = null; int max = 0;
+        for (int i = 0; i < counts.length; i++) if (counts[i] > max) { max = counts[i]; common = MOODS[i]; }
+        return common;
+    }
+
+    int getTotal() { return overall.count; }
+    int getCount(Mood m) { return overall.moods[m.ordinal()]; }
+    Mood getMostCommon() { return mostCommon; }
+    Rollup getOverall() { return overall; }
+    // Read-only views keyed as described above; UNKNOWN_DAY holds entries without a start time
+    NavigableMap<Long, Rollup> getDays() { return Collections.unmodifiableNavigableMap(days); }
+    NavigableMap<Long, Rollup> getWeeks() { return Collections.unmodifiableNavigableMap(weeks); }
+    NavigableMap<Long, Rollup> getMonths() { return Collections.unmodifiableNavigableMap(months); }
+
+    static String dayLabel(long day) { return day == UNKNOWN_DAY ? "Unknown" : LocalDate.ofEpochDay(day).toString(); }
+    static String monthLabel(long month) { return month == UNKNOWN_DAY ? "Unknown" : String.format("%d-%02d", month / 12, month % 12 + 1); }
+
+    void print(PrintStream out) {
+        out.println("\n--- Mood Stats Day by Day ---");
+        for (Map.Entry<Long, Rollup> d : days.entrySet()) {
+            Rollup r = d.getValue();
+            out.println("Date: " + dayLabel(d.getKey()));
+            printCounts(out, r);
+            out.println("Most common mood: " + r.mostCommon() + "\n");
+        }
+        out.println("--- Weekly Summary ---");
+        for (Map.Entry<Long, Rollup> w : weeks.entrySet()) printSummary(out, "Week of " + dayLabel(w.getKey()), w.getValue());
+        out.println("\n--- Monthly Summary ---");
+        for (Map.Entry<Long, Rollup> m : months.entrySet()) printSummary(out, monthLabel(m.getKey()), m.getValue());
+        out.println("\n--- Overall Mood Stats ---");
+        printCounts(out, overall);
+        out.println("Overall most common mood: " + mostCommon);
+    }
+
+    private static void printSummary(PrintStream out, String label, Rollup r) {
+        out.println(label + ": " + r.count + " entries, most common " + r.mostCommon()
+                + ", average duration " + MentalWellnessJournal3.getDurationString(r.meanMinutes() * 60_000));
+    }
+
+    private static void printCounts(PrintStream out, Rollup r) {
+        for (int i = 0; i < r.moods.length; i++)
+            if (r.moods[i] > 0) out.printf("%s: %d (%.1f%%)\n", MOODS[i], r.moods[i], (r.moods[i] * 100.0) / r.count);
+        out.println("Total duration: " + MentalWellnessJournal3.getDurationString(r.minutes * 60_000)
+                + ", average: " + MentalWellnessJournal3.getDurationString(r.meanMinutes() * 60_000));
+    }
+
+    // The zone is part of the data: day keys computed in another zone would be wrong here
+    void write(DataOutputStream out) throws IOException {
+        out.writeUTF(ZoneId.systemDefault().getId());
+        out.writeInt(MOODS.length);
+        overall.write(out);
+        for (TreeMap<Long, Rollup> table : List.of(days, weeks, months)) {
+            out.writeInt(table.size());
+            for (Map.Entry<Long, Rollup> r : table.entrySet()) { out.writeLong(r.getKey()); r.getValue().write(out); }
+        }
+    }
+
+    // False, leaving the statistics cleared, if the data was written for another zone or mood set
+    boolean read(DataInputStream in) throws IOException {
+        clear();
+        if (!in.readUTF().equals(ZoneId.systemDefault().getId()) || in.readInt() != MOODS.length) return false;
+        overall = Rollup.read(in);
+        for (TreeMap<Long, Rollup> table : List.of(days, weeks, months))
+            for (int n = in.readInt(); n > 0; n--) table.put(in.readLong(), Rollup.read(in));
+        mostCommon = overall.mostCommon();
+        return true;
+    }
+}
+
+// "<journal>.stats", "<journal>.notes": data derived from the journal as of the last save, with
+// the length and modification time of the journal files it describes. A journal touched after
+// that, e.g. by appends that were never saved, no longer matches and the data is rebuilt from
+// the entries instead. Encrypted journals seal the body with their key, others XOR it.
+class JournalSidecar {
+    static final int MAGIC = 0x4D574A52; // "MWJR"
+    static final int VERSION = 3;
+    static final String STATS = ".stats", NOTES = ".notes";
+    private static final long BLOCK_INDEX = -1; // AAD apart from every journal block index
+
+    interface Body { void write(DataOutputStream out) throws IOException; }
+    interface Reader { boolean read(DataInputStream in) throws IOException; }
+
+    static File fileFor(String journal, String suffix) { return new File(journal + suffix); }
+
+    static long[] stamp(File... files) {
+        long[] s = new long[files.length * 2];
+        for (int i = 0; i < files.length; i++) { s[2 * i] = files[i].length(); s[2 * i + 1] = files[i].lastModified(); }
+        return s;
+    }
+
+    static void write(File sidecar, long[] stamp, JournalCrypto crypto, Body content) throws IOException {
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        DataOutputStream d = new DataOutputStream(plain);
+        d.writeInt(stamp.length);
+        for (long v : stamp) d.writeLong(v);
+        content.write(d);
+        d.flush();
+        byte[] body = plain.toByteArray();
+        if (crypto != null) {
+            ByteBuffer sealed = ByteBuffer.allocate(JournalCrypto.BLOCK_HEADER + body.length + JournalCrypto.TAG_BYTES);
+            crypto.encryptBlock(BLOCK_INDEX, ByteBuffer.wrap(body), sealed);
+            body = sealed.array();
+        } else SimpleCipher.xor(body);
+        Path target = sidecar.toPath().toAbsolutePath();
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp.toFile()), 1 << 16))) {
+            out.writeInt(MAGIC); out.writeInt(VERSION); out.writeBoolean(crypto != null);
+            out.write(body);
+        }
+        Metrics.BYTES_WRITTEN.add(9L + body.length);
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // True if content took the saved data; any mismatch or damage just means a rebuild
+    static boolean read(File sidecar, long[] stamp, JournalCrypto crypto, Reader content) {
+        if (!sidecar.exists()) return false;
+        try {
+            byte[] all = Files.readAllBytes(sidecar.toPath());
+            ByteBuffer b = ByteBuffer.wrap(all);
+            if (all.length < 9 || b.getInt() != MAGIC || b.getInt() != VERSION) return false;
+            boolean sealed = b.get() != 0;
+            if (sealed != (crypto != null)) return false;
+            if (sealed) {
+                ByteBuffer plain = ByteBuffer.allocate(b.remaining());
+                crypto.decryptBlock(BLOCK_INDEX, b, plain);
+                b = plain.flip();
+            } else {
+                byte[] body = Arrays.copyOfRange(all, b.position(), all.length);
+                SimpleCipher.xor(body);
+                b = ByteBuffer.wrap(body);
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(b.array(), b.position(), b.remaining()));
+            if (in.readInt() != stamp.length) return false;
+            for (long v : stamp) if (in.readLong() != v) return false;
+            return content.read(in);
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+    }
+}
+
+// ================= Trend Analytics =================
+// Relative-error quantile sketch: a value v > 0 counts in bucket ceil(log_gamma(v)),
+// gamma = (1 + ACCURACY) / (1 - ACCURACY), and a bucket answers 2 gamma^i / (gamma + 1), within
+// ACCURACY of every value in it. The buckets are one dense array over the indexes seen, so
+// memory grows with the log of the value range, and sketches merge exactly by adding counts.
+class QuantileSketch {
+    static final double ACCURACY = 0.01;
+    private static final double GAMMA = (1 + ACCURACY) / (1 - ACCURACY), LOG_GAMMA = Math.log(GAMMA);
+    private long[] counts = new long[0];
+    private int offset;  // bucket index of counts[0]
+    private long zeros;  // values <= 0
+    private long count;
+
+    void add(long v) { add(v, 1); }
+
+    void add(long v, long n) {
+        count += n;
+        if (v <= 0) { zeros += n; return; }
+        int i = (int) Math.ceil(Math.log(v) / LOG_GAMMA);
+        ensure(i);
+        counts[i - offset] += n;
+    }
+
+    private void ensure(int i) {
+        if (counts.length == 0) { counts = new long[16]; offset = i - 8; return; }
+        if (i >= offset && i < offset + counts.length) return;
+        int lo = Math.min(offset, i), hi = Math.max(offset + counts.length - 1, i);
+        int len = Math.max(hi - lo + 1, counts.length * 2);
+        int newOffset = (i < offset) ? hi - len + 1 : lo;
+        long[] grown = new long[len];
+        System.arraycopy(counts, 0, grown, offset - newOffset, counts.length);
+        counts = grown;
+        offset = newOffset;
+    }
+
+    void merge(QuantileSketch other) {
+        count += other.count;
+        zeros += other.zeros;
+        for (int b = 0; b < other.counts.length; b++) {
+            if (other.counts[b] == 0) continue;
+            ensure(other.offset + b);
+            counts[other.offset + b - offset] += other.counts[b];
+        }
+    }
+
+    long count() { return count; }
+
+    // The value of rank q * (count - 1), rounded; 0 for an empty sketch
+    long quantile(double q) {
+        if (count == 0) return 0;
+        long rank = (long) (q * (count - 1)), seen = zeros;
+        if (rank < seen) return 0;
+        for (int b = 0; b < counts.length; b++)
+            if ((seen += counts[b]) > rank) return Math.round(2 * Math.pow(GAMMA, offset + b) / (GAMMA + 1));
+        return Math.round(2 * Math.pow(GAMMA, offset + counts.length - 1) / (GAMMA + 1));
+    }
+}
+
+// Folds per-day mood counts, fed in day order, into consecutive-day streaks and the trailing
+// SHORT and LONG day distributions with the windows just before them. Memory is a ring of
+// 2 x LONG days, however long the journal.
+class TrendFold {
+    static final int SHORT = 7, LONG = 30;
+    private static final int MOODS = Mood.values().length;
+    private final int[][] ring = new int[2 * LONG][MOODS];
+    private static final long NONE = Long.MIN_VALUE; // epoch days before 1970 are negative
+    final int[] last = new int[MOODS], previous = new int[MOODS], lastLong = new int[MOODS], previousLong = new int[MOODS];
+    long firstDay = NONE, lastDay = NONE;
+    int activeDays;
+    int run, longestRun;                 // consecutive days with entries
+    long longestRunEnd = NONE;
+    private Mood runMood;                // the mood that led every day of moodRun
+    private int moodRun;
+    final int[] longestMoodRun = new int[MOODS];
+    final long[] longestMoodRunEnd = new long[MOODS];
+
+    void day(long day, int[] counts) {
+        if (lastDay != NONE && day <= lastDay) throw new IllegalStateException("days out of order");
+        if (firstDay == NONE) firstDay = day;
+        else for (long d = lastDay + 1; d < day && d - lastDay <= 2 * LONG; d++) shift(d, null);
+        if (lastDay != NONE && day - lastDay > 2 * LONG) clearWindows();
+        shift(day, counts);
+        boolean consecutive = lastDay != NONE && day == lastDay + 1;
+        run = consecutive ? run + 1 : 1;
+        if (run > longestRun) { longestRun = run; longestRunEnd = day; }
+        Mood lead = MoodStatistics.mostCommon(counts);
+        moodRun = (consecutive && lead == runMood) ? moodRun + 1 : 1;
+        runMood = lead;
+        if (lead != null && moodRun > longestMoodRun[lead.ordinal()]) {
+            longestMoodRun[lead.ordinal()] = moodRun;
+            longestMoodRunEnd[lead.ordinal()] = day;
+        }
+        activeDays++;
+        lastDay = day;
+    }
+
+    // Day d enters the windows; the days SHORT and LONG before it move to the previous ones
+    private void shift(long d, int[] counts) {
+        int[] slot = ring[(int) Math.floorMod(d, 2L * LONG)];
+        int[] leaving = ring[(int) Math.floorMod(d - 2L * LONG, 2L * LONG)]; // the same slot
+        int[] shortOut = ring[(int) Math.floorMod(d - SHORT, 2L * LONG)], shortGone = ring[(int) Math.floorMod(d - 2L * SHORT, 2L * LONG)];
+        int[] longOut = ring[(int) Math.floorMod(d - LONG, 2L * LONG)];
+        for (int m = 0; m < MOODS; m++) {
+            previous[m] += shortOut[m] - shortGone[m];
+            last[m] -= shortOut[m];
+            previousLong[m] += longOut[m] - leaving[m];
+            lastLong[m] -= longOut[m];
+        }
+        if (counts == null) Arrays.fill(slot, 0);
+        else System.arraycopy(counts, 0, slot, 0, MOODS);
+        for (int m = 0; m < MOODS; m++) { last[m] += slot[m]; lastLong[m] += slot[m]; }
+    }
+
+    private void clearWindows() {
+        for (int[] r : ring) Arrays.fill(r, 0);
+        Arrays.fill(last, 0); Arrays.fill(previous, 0); Arrays.fill(lastLong, 0); Arrays.fill(previousLong, 0);
+    }
+}
+
+// Trends of one journal: streaks and moving distributions from TrendFold, and quantiles of the
+// minutes from an entry to its feedback, overall and by mood, over entries that have an end.
+class TrendReport {
+    private static final Mood[] MOODS = Mood.values();
+    final TrendFold fold;
+    final QuantileSketch durations;
+    final QuantileSketch[] byMood;
+
+    TrendReport(TrendFold fold, QuantileSketch durations, QuantileSketch[] byMood) {
+        this.fold = fold; this.durations = durations; this.byMood = byMood;
+    }
+
+    // The streak still running if the last entry was today or yesterday
+    int currentRun(long today) { return fold.lastDay >= today - 1 ? fold.run : 0; }
+
+    void print(PrintStream out, long today) {
+        out.println("\n--- Mood Trends ---");
+        if (fold.activeDays == 0) { out.println("No entries to analyze."); return; }
+        out.println("Journaling streak: longest " + fold.longestRun + " day(s), ended " + LocalDate.ofEpochDay(fold.longestRunEnd)
+                + "; current " + currentRun(today) + " day(s)");
+        StringBuilder sb = new StringBuilder("Longest mood streaks:");
+        for (Mood m : MOODS) {
+            int n = fold.longestMoodRun[m.ordinal()];
+            if (n > 0) sb.append(' ').append(m).append(' ').append(n).append(" (").append(LocalDate.ofEpochDay(fold.longestMoodRunEnd[m.ordinal()])).append(')');
+        }
+        out.println(sb);
+        printWindow(out, TrendFold.SHORT, fold.last, fold.previous, today);
+        printWindow(out, TrendFold.LONG, fold.lastLong, fold.previousLong, today);
+        if (durations.count() == 0) return;
+        out.println("Minutes to feedback: " + quantiles(durations) + " over " + durations.count() + " entries");
+        for (Mood m : MOODS) if (byMood[m.ordinal()].count() > 0) out.println("  " + m + ": " + quantiles(byMood[m.ordinal()]));
+    }
+
+    static String quantiles(QuantileSketch s) {
+        return "p50 " + s.quantile(0.5) + ", p90 " + s.quantile(0.9) + ", p99 " + s.quantile(0.99);
+    }
+
+    // Shares in the window up to the last entry day, with the change in points from the one before;
+    // the label names that day unless it is today
+    private void printWindow(PrintStream out, int days, int[] now, int[] before, long today) {
+        long total = 0, totalBefore = 0;
+        for (int m = 0; m < MOODS.length; m++) { total += now[m]; totalBefore += before[m]; }
+        String label = fold.lastDay == today ? "Last " + days + " days" : days + " days to " + LocalDate.ofEpochDay(fold.lastDay);
+        StringBuilder sb = new StringBuilder(label + " (" + total + " entries):");
+        if (total == 0) { out.println(sb.append(" none")); return; }
+        for (int m = 0; m < MOODS.length; m++) {
+            if (now[m] == 0 && before[m] == 0) continue;
+            long share = Math.round(100.0 * now[m] / total);
+            sb.append(' ').append(MOODS[m]).append(' ').append(share).append('%');
+            if (totalBefore > 0) {
+                long change = share - Math.round(100.0 * before[m] / totalBefore);
+                sb.append(" (").append(change >= 0 ? "+" : "").append(change).append(')');
+            }
+        }
+        out.println(sb);
+    }
+}
+
+// One pass over entries. trends() streams a journal whose entries are in start order, as a
+// journal written day by day is, keeping only the current day open; at the first entry out of
+// order it hands over to analyze(), which splits a journal in any order across a pool into
+// Partials of per-day counts and sketches that merge and are then folded day by day.
+class TrendAnalyzer {
+    static final int MIN_PARTITION = 64 * 1024;
+    private static final int MOODS = Mood.values().length;
+    private final ZoneRules zone = ZoneId.systemDefault().getRules();
+
+    long dayOf(long ms) {
+        return Math.floorDiv(ms + zone.getOffset(Instant.ofEpochMilli(ms)).getTotalSeconds() * 1000L, 86_400_000L);
+    }
+
+    long today() { return dayOf(System.currentTimeMillis()); }
+
+    static final class Partial {
+        final TreeMap<Long, int[]> days = new TreeMap<>();
+        final QuantileSketch durations = new QuantileSketch();
+        final QuantileSketch[] byMood = sketches();
+
+        void add(long day, Mood mood, long startMillis, long endMillis) {
+            days.computeIfAbsent(day, d -> new int[MOODS])[mood.ordinal()]++;
+            if (endMillis != 0) {
+                long minutes = (endMillis - startMillis) / 60_000;
+                durations.add(minutes);
+                byMood[mood.ordinal()].add(minutes);
+            }
+        }
+
+        Partial merge(Partial other) {
+            for (Map.Entry<Long, int[]> d : other.days.entrySet()) {
+                int[] mine = days.computeIfAbsent(d.getKey(), k -> new int[MOODS]);
+                for (int m = 0; m < MOODS; m++) mine[m] += d.getValue()[m];
+            }
+            durations.merge(other.durations);
+            for (int m = 0; m < MOODS; m++) byMood[m].merge(other.byMood[m]);
+            return this;
+        }
+
+        TrendReport report() {
+            TrendFold fold = new TrendFold();
+            for (Map.Entry<Long, int[]> d : days.entrySet()) fold.day(d.getKey(), d.getValue());
+            return new TrendReport(fold, durations, byMood);
+        }
+    }
+
+    private static QuantileSketch[] sketches() {
+        QuantileSketch[] s = new QuantileSketch[MOODS];
+        for (int m = 0; m < MOODS; m++) s[m] = new QuantileSketch();
+        return s;
+    }
+
+    Stream stream() { return new Stream(); }
+
+    // Entries in start order
+    final class Stream {
+        private static final long NONE = Long.MIN_VALUE;
+        private final TrendFold fold = new TrendFold();
+        private final QuantileSketch durations = new QuantileSketch();
+        private final QuantileSketch[] byMood = sketches();
+        private final int[] open = new int[MOODS];
+        private long openDay = NONE;
+
+        // False, leaving the stream unusable, for an entry on an earlier day than the open one
+        boolean accept(long startMillis, long endMillis, Mood mood) {
+            long day = dayOf(startMillis);
+            if (day != openDay) {
+                if (day < openDay) return false;
+                if (openDay != NONE) {
+                    fold.day(openDay, open);
+                    Arrays.fill(open, 0);
+                }
+                openDay = day;
+            }
+            open[mood.ordinal()]++;
+            if (endMillis != 0) {
+                long minutes = (endMillis - startMillis) / 60_000;
+                durations.add(minutes);
+                byMood[mood.ordinal()].add(minutes);
+            }
+            return true;
+        }
+
+        TrendReport finish() {
+            if (openDay != NONE) fold.day(openDay, open);
+            openDay = NONE;
+            return new TrendReport(fold, durations, byMood);
+        }
+    }
+
+    TrendReport trends(List<JournalEntry> entries, ForkJoinPool pool) {
+        Stream s = stream();
+        EntryColumns cols = (entries instanceof EntryColumns) ? (EntryColumns) entries : null;
+        for (int i = 0; i < entries.size(); i++) {
+            boolean ordered;
+            if (cols != null) ordered = s.accept(cols.startMillisAt(i), cols.endMillisAt(i), cols.moodAt(i));
+            else {
+                JournalEntry e = entries.get(i);
+                if (e.getStartTime() == null) continue;
+                ordered = s.accept(e.getStartTime().getTime(), e.getEndTime() != null ? e.getEndTime().getTime() : 0, e.getMood());
+            }
+            if (!ordered) return analyze(entries, pool).report();
+        }
+        return s.finish();
+    }
+
+    Partial scan(List<JournalEntry> entries, int from, int to) {
+        Partial p = new Partial();
+        if (entries instanceof EntryColumns) {
+            EntryColumns cols = (EntryColumns) entries;
+            for (int i = from; i < to; i++) {
+                long start = cols.startMillisAt(i);
+                p.add(dayOf(start), cols.moodAt(i), start, cols.endMillisAt(i));
+            }
+        } else for (int i = from; i < to; i++) {
+            JournalEntry e = entries.get(i);
+            if (e.getStartTime() == null) continue;
+            long start = e.getStartTime().getTime();
+            p.add(dayOf(start), e.getMood(), start, e.getEndTime() != null ? e.getEndTime().getTime() : 0);
+        }
+        return p;
+    }
+
+    Partial analyze(List<JournalEntry> entries, ForkJoinPool pool) {
+        return pool.invoke(new ScanTask(entries, 0, entries.size()));
+    }
+
+    private final class ScanTask extends RecursiveTask<Partial> {
+        private static final long serialVersionUID = 1L;
+        private final transient List<JournalEntry> entries;
+        private final int from, to;
+        ScanTask(List<JournalEntry> entries, int from, int to) { this.entries = entries; this.from = from; this.to = to; }
+
+        @Override protected Partial compute() {
+            if (to - from <= MIN_PARTITION) return scan(entries, from, to);
+            int mid = (from + to) >>> 1;
+            ScanTask right = new ScanTask(entries, mid, to);
+            right.fork();
+            Partial left = new ScanTask(entries, from, mid).compute();
+            return left.merge(right.join());
+        }
+    }
+}
+
+// ================= Cross-User Aggregates =================
+// A mergeable share of the org-wide dashboard: per-day mood counts and feedback-time sketches
+// (a TrendAnalyzer.Partial) plus tag uses by name. One user's share is a few KB whatever the
+// size of the journal, and shares merge in any order.
+class OrgAggregate {
+    private static final Mood[] MOODS = Mood.values();
+    final TrendAnalyzer.Partial moods = new TrendAnalyzer.Partial();
+    final Map<String, Long> tagUses = new HashMap<>();
+    long users, entries;
+
+    OrgAggregate merge(OrgAggregate other) {
+        moods.merge(other.moods);
+        for (Map.Entry<String, Long> t : other.tagUses.entrySet()) tagUses.merge(t.getKey(), t.getValue(), Long::sum);
+        users += other.users;
+        entries += other.entries;
+        return this;
+    }
+
+    List<Map.Entry<String, Long>> topTags(int limit) {
+        PriorityQueue<Map.Entry<String, Long>> top = new PriorityQueue<>(Map.Entry.comparingByValue());
+        for (Map.Entry<String, Long> t : tagUses.entrySet()) {
+            top.add(t);
+            if (top.size() > limit) top.poll();
+        }
+        List<Map.Entry<String, Long>> best = new ArrayList<>(top);
+        best.sort(Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()));
+        return best;
+    }
+
+    // The last days with entries, newest first, and the tagLimit most used tags
+    void print(PrintStream out, int days, int tagLimit) {
+        out.println("\n--- All Users ---");
+        out.println(users + " journal(s), " + entries + " entries");
+        if (entries == 0) return;
+        out.println("\n--- Mood mix per day ---");
+        int shown = 0;
+        for (Map.Entry<Long, int[]> d : moods.days.descendingMap().entrySet()) {
+            if (shown++ == days) break;
+            int[] counts = d.getValue();
+            long total = 0;
+            for (int c : counts) total += c;
+            StringBuilder sb = new StringBuilder(MoodStatistics.dayLabel(d.getKey())).append(" (").append(total).append("):");
+            for (Mood m : MOODS)
+                if (counts[m.ordinal()] > 0) sb.append(' ').append(m).append(' ').append(Math.round(100.0 * counts[m.ordinal()] / total)).append('%');
+            out.println(sb);
+        }
+        List<Map.Entry<String, Long>> top = topTags(tagLimit);
+        if (!top.isEmpty()) {
+            out.println("\n--- Most common tags ---");
+            for (Map.Entry<String, Long> t : top) out.println(t.getKey() + ": " + t.getValue());
+        }
+        if (moods.durations.count() > 0)
+            out.println("\nMinutes to feedback: " + TrendReport.quantiles(moods.durations) + " over " + moods.durations.count() + " entries");
+    }
+}
+
+// Reduces every user's journal in the credentials file to one OrgAggregate. Journals load on a
+// fixed pool, at most WINDOW per thread in flight; the coordinator merges each share as it
+// completes and the manager is dropped, so memory holds a few journals however many users there
+// are. A journal encrypted with its user's password cannot be read here and is reported skipped.
+class AggregateJob {
+    static final int WINDOW = 2;
+
+    static class Result {
+        final OrgAggregate total = new OrgAggregate();
+        final List<String> skipped = new ArrayList<>();
+    }
+
+    static Result run(String userFile, File dir, int threads) throws IOException {
+        List<String> users = new ArrayList<>(UserStore.open(userFile).usernames());
+        Collections.sort(users);
+        Result result = new Result();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CompletionService<OrgAggregate> done = new ExecutorCompletionService<>(pool);
+        int maxInFlight = WINDOW * threads, inFlight = 0;
+        try {
+            for (String user : users) {
+                File f = JournalManager.journalOf(dir, user);
+                JournalImporter.Format format = JournalImporter.detect(f);
+                if (format == JournalImporter.Format.EMPTY) continue;
+                if (format != JournalImporter.Format.V3_TEXT && format != JournalImporter.Format.V3_BINARY) {
+                    result.skipped.add(user + ": " + format);
+                    continue;
+                }
+                if (inFlight == maxInFlight) { merge(done, result); inFlight--; }
+                done.submit(() -> share(f));
+                inFlight++;
+            }
+            for (; inFlight > 0; inFlight--) merge(done, result);
+        } finally {
+            pool.shutdownNow();
+        }
+        return result;
+    }
+
+    private static OrgAggregate share(File f) throws IOException {
+        JournalManager m = new JournalManager();
+        m.loadFromFile(f.getPath());
+        if (m.isLoadFailed()) throw new IOException(f.getName() + " could not be read");
+        return m.aggregate();
+    }
+
+    private static void merge(CompletionService<OrgAggregate> done, Result result) throws IOException {
+        try { result.total.merge(done.take().get()); }
+        catch (InterruptedException e) { Thread.currentThread().interrupt(); throw new InterruptedIOException("aggregation interrupted"); }
+        catch (ExecutionException e) { result.skipped.add(String.valueOf(e.getCause().getMessage())); }
+    }
+}
+
+// ================= Secondary Indexes =================
+// Growable sorted array of entry ids, used as a posting list
+class LongList {
+    private long[] a;
+    private int size;
+
+    LongList() { this(new long[4], 0); }
+
+    // Takes over a, whose first size values must be sorted and distinct
+    LongList(long[] a, int size) { this.a = a; this.size = size; }
+
+    int size() { return size; }
+    long get(int i) { return a[i]; }
+    long[] toArray() { return Arrays.copyOf(a, size); }
+
+    // Position of v at or after from, or -(insertion point) - 1 as Arrays.binarySearch
+    int search(int from, long v) { return Arrays.binarySearch(a, from, size, v); }
+
+    // Copies the values to dst at pos; returns the position after them
+    int copyTo(long[] dst, int pos) {
+        System.arraycopy(a, 0, dst, pos, size);
+        return pos + size;
+    }
+
+    void add(long v) {
+        int pos = (size == 0 || a[size - 1] < v) ? size : -(Arrays.binarySearch(a, 0, size, v) + 1);
+        if (pos < 0) return; // already present
+        if (size == a.length) a = Arrays.copyOf(a, size * 2);
+        System.arraycopy(a, pos, a, pos + 1, size - pos);
+        a[pos] = v;
+        size++;
+    }
+
+    boolean remove(long v) {
+        int pos = Arrays.binarySearch(a, 0, size, v);
+        if (pos < 0) return false;
+        System.arraycopy(a, pos + 1, a, pos, size - pos - 1);
+        size--;
+        return true;
+    }
+
+    boolean contains(long v) { return Arrays.binarySearch(a, 0, size, v) >= 0; }
+}
+
+// Criteria are ANDed; an unset criterion matches everything
+class JournalQuery {
+    Mood mood;
+    final Set<String> tags = new LinkedHashSet<>();
+    long from = Long.MIN_VALUE, to = Long.MAX_VALUE; // start time range, inclusive
+
+    JournalQuery mood(Mood m) { this.mood = m; return this; }
+    JournalQuery tag(String t) { tags.add(t.toLowerCase(Locale.ROOT)); return this; }
+    JournalQuery between(Date from, Date to) { this.from = from.getTime(); this.to = to.getTime(); return this; }
+    JournalQuery lastDays(int days) { this.from = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(days); this.to = Long.MAX_VALUE; return this; }
+}
+
+// Mood and tag posting lists plus a start-time index, all holding entry ids. Built on the
+// first query so a lazily mapped journal is not decoded at startup; kept current afterwards.
+class JournalIndex implements JournalListener {
+    private final EnumMap<Mood, LongList> byMood = new EnumMap<>(Mood.class);
+    private final List<LongList> byTag = new ArrayList<>(); // by tag dictionary id
+    private final TreeMap<Long, LongList> byStart = new TreeMap<>();
+    private final TagDictionary dict;
+    private List<JournalEntry> source;
+    private boolean built;
+
+    JournalIndex(TagDictionary dict) { this.dict = dict; }
+
+    @Override public void loaded(List<JournalEntry> entries) {
+        source = entries;
+        built = false;
+        byMood.clear(); byTag.clear(); byStart.clear();
+    }
+
+    // Column reads where the list has them, so a lazily mapped journal stays undecoded
+    private void ensureBuilt() {
+        if (built) return;
+        if (source instanceof EntryColumns) {
+            EntryColumns cols = (EntryColumns) source;
+            for (int i = 0; i < source.size(); i++) index(cols.idAt(i), cols.moodAt(i), cols.tagIdsAt(i), cols.startMillisAt(i));
+        } else for (JournalEntry e : source) index(e);
+        built = true;
+    }
+
+    @Override public void entryAdded(JournalEntry e) { if (built) index(e); }
+
+    @Override public void entryRemoved(JournalEntry e) {
+        if (!built) return;
+        LongList mood = byMood.get(e.getMood());
+        if (mood.remove(e.getId()) && mood.size() == 0) byMood.remove(e.getMood());
+        for (int t : e.tagIdsIn(dict)) {
+            LongList tag = byTag.get(t);
+            if (tag.remove(e.getId()) && tag.size() == 0) byTag.set(t, null);
+        }
+        if (e.getStartTime() != null) {
+            LongList at = byStart.get(e.getStartTime().getTime());
+            if (at.remove(e.getId()) && at.size() == 0) byStart.remove(e.getStartTime().getTime());
+        }
+    }
+
+    private void index(JournalEntry e) {
+        index(e.getId(), e.getMood(), e.tagIdsIn(dict), e.getStartTime() != null ? e.getStartTime().getTime() : null);
+    }
+
+    private void index(long id, Mood mood, int[] tagIds, Long start) {
+        byMood.computeIfAbsent(mood, k -> new LongList()).add(id);
+        for (int t : tagIds) {
+            while (byTag.size() <= t) byTag.add(null);
+            if (byTag.get(t) == null) byTag.set(t, new LongList());
+            byTag.get(t).add(id);
+        }
+        if (start != null) byStart.computeIfAbsent(start, k -> new LongList()).add(id);
+    }
+
+    // Sorted ids matching every criterion; null when the query has no criteria
+    long[] find(JournalQuery q) {
+        ensureBuilt();
+        List<LongList> lists = new ArrayList<>();
+        if (q.mood != null) lists.add(postings(byMood.get(q.mood)));
+        for (String t : q.tags) {
+            int id = dict.idOf(t);
+            lists.add(postings(id >= 0 && id < byTag.size() ? byTag.get(id) : null));
+        }
+        if (q.from != Long.MIN_VALUE || q.to != Long.MAX_VALUE) lists.add(range(q.from, q.to));
+        if (lists.isEmpty()) return null;
+        lists.sort(Comparator.comparingInt(LongList::size));
+        LongList result = lists.get(0);
+        for (int i = 1; i < lists.size() && result.size() > 0; i++) result = intersect(result, lists.get(i));
+        return result.toArray();
+    }
+
+    private static LongList postings(LongList l) { return l == null ? new LongList() : l; }
+
+    // Ids starting in [from, to]: gathered per start time, then sorted once
+    private LongList range(long from, long to) {
+        Collection<LongList> span = byStart.subMap(from, true, to, true).values();
+        int n = 0;
+        for (LongList ids : span) n += ids.size();
+        long[] all = new long[n];
+        int pos = 0;
+        for (LongList ids : span) pos = ids.copyTo(all, pos);
+        Arrays.sort(all);
+        return new LongList(all, n);
+    }
+
+    // As intersect(long[], long[]), reading the posting lists in place
+    static LongList intersect(LongList small, LongList large) {
+        long[] out = new long[small.size()];
+        int n = 0, lo = 0;
+        for (int i = 0; i < small.size() && lo < large.size(); i++) {
+            long v = small.get(i);
+            int pos = large.search(lo, v);
+            if (pos >= 0) { out[n++] = v; lo = pos + 1; }
+            else lo = -(pos + 1);
+        }
+        return new LongList(out, n);
+    }
+
+    // Walks the smaller list and binary-searches the larger one from the last match onwards
+    static long[] intersect(long[] small, long[] large) {
+        long[] out = new long[small.length];
+        int n = 0, lo = 0;
+        for (long v : small) {
+            int pos = Arrays.binarySearch(large, lo, large.length, v);
+            if (pos >= 0) { out[n++] = v; lo = pos + 1; }
+            else lo = -(pos + 1);
+            if (lo >= large.length) break;
+        }
+        return Arrays.copyOf(out, n);
+    }
+}
+
+// ================= Tag Pairs =================
+// Entries per pair of tags used together, counted once per entry however often it repeats a
+// tag. Only pairs that occur are stored: an open-addressing table keyed by (low id << 32 | high
+// id), built on the first query and kept current through the listener calls after that.
+class TagPairs implements JournalListener {
+    interface Visitor { void pair(int a, int b, int entries); }
+
+    private final TagDictionary dict;
+    private List<JournalEntry> source;
+    private boolean built;
+    private long[] keys = new long[64]; // 0: free slot; a real key always has a high id > 0
+    private int[] counts = new int[64];
+    private int used;
+
+    TagPairs(TagDictionary dict) { this.dict = dict; }
+
+    @Override public void loaded(List<JournalEntry> entries) {
+        source = entries;
+        built = false;
+        keys = new long[64];
+        counts = new int[64];
+        used = 0;
+    }
+
+    private void ensureBuilt() {
+        if (built) return;
+        if (source instanceof EntryColumns) {
+            EntryColumns cols = (EntryColumns) source;
+            for (int i = 0; i < source.size(); i++) count(cols.tagIdsAt(i), 1);
+        } else for (JournalEntry e : source) count(e.tagIdsIn(dict), 1);
+        built = true;
+    }
+
+    @Override public void entryAdded(JournalEntry e) { if (built) count(e.tagIdsIn(dict), 1); }
+    @Override public void entryRemoved(JournalEntry e) { if (built) count(e.tagIdsIn(dict), -1); }
+
+    private void count(int[] ids, int delta) {
+        if (ids.length < 2) return;
+        ids = ids.clone();
+        Arrays.sort(ids);
+        for (int i = 0; i < ids.length; i++) {
+            if (i > 0 && ids[i] == ids[i - 1]) continue;
+            for (int j = i + 1; j < ids.length; j++) {
+                if (ids[j] == ids[j - 1]) continue;
+                int k = slot((long) ids[i] << 32 | ids[j]); // may rehash, so look counts up after
+                counts[k] += delta;
+            }
+        }
+    }
+
+    // Entries carrying both tags (dictionary ids)
+    int count(int a, int b) {
+        ensureBuilt();
+        if (a == b) return 0;
+        long key = (long) Math.min(a, b) << 32 | Math.max(a, b);
+        for (int i = hash(key); ; i = (i + 1) & (keys.length - 1)) {
+            if (keys[i] == key) return counts[i];
+            if (keys[i] == 0) return 0;
+        }
+    }
+
+    // Every pair with at least one entry, in no particular order
+    void forEach(Visitor v) {
+        ensureBuilt();
+        for (int i = 0; i < keys.length; i++)
+            if (counts[i] > 0) v.pair((int) (keys[i] >>> 32), (int) keys[i], counts[i]);
+    }
+
+    // Finds or claims the slot of key; pairs whose count drops to 0 keep their slot
+    private int slot(long key) {
+        if (used * 2 >= keys.length) rehash();
+        int i = hash(key);
+        while (keys[i] != key && keys[i] != 0) i = (i + 1) & (keys.length - 1);
+        if (keys[i] == 0) { keys[i] = key; used++; }
+        return i;
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        int[] oldCounts = counts;
+        keys = new long[oldKeys.length * 2];
+        counts = new int[keys.length];
+        used = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldCounts[i] <= 0) continue;
+            int k = slot(oldKeys[i]);
+            counts[k] = oldCounts[i];
+        }
+    }
+
+    private int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & (keys.length - 1);
+    }
+}
+
+// ================= Note Search =================
+// Inverted index over feedback notes: term -> entry ids, each with the token positions of the
+// term in that note. Queries AND their clauses: plain words, "quoted phrases" and prefix*
+// words; matches are ranked with BM25. Built on the first search, or restored from the
+// "<journal>.notes" sidecar, and kept current through the listener events after that.
+// Saved postings hold entry ids: they are stored with the entries, and the sidecar's stamp
+// only matches the journal files it was written with, so they mean the same entries on reload.
+class NoteIndex implements JournalListener {
+    private static final double K1 = 1.2, B = 0.75;
+
+    // Ids ascending; positions[i] are the token positions of the term in note ids[i]
+    static final class Postings {
+        long[] ids = new long[2];
+        int[][] positions = new int[2][];
+        int size;
+
+        int find(long id) { return Arrays.binarySearch(ids, 0, size, id); }
+
+        void put(long id, int[] pos) {
+            int i = (size == 0 || ids[size - 1] < id) ? size : find(id);
+            if (i >= 0 && i < size) { positions[i] = pos; return; }
+            if (i < 0) i = -(i + 1);
+            if (size == ids.length) { ids = Arrays.copyOf(ids, size * 2); positions = Arrays.copyOf(positions, size * 2); }
+            System.arraycopy(ids, i, ids, i + 1, size - i);
+            System.arraycopy(positions, i, positions, i + 1, size - i);
+            ids[i] = id;
+            positions[i] = pos;
+            size++;
+        }
+
+        void remove(long id) {
+            int i = find(id);
+            if (i < 0) return;
+            System.arraycopy(ids, i + 1, ids, i, size - i - 1);
+            System.arraycopy(positions, i + 1, positions, i, size - i - 1);
+            positions[--size] = null;
+        }
+    }
+
+    static final class Hit {
+        final long id;
+        final double score;
+        Hit(long id, double score) { this.id = id; this.score = score; }
+    }
+
+    private final TreeMap<String, Postings> terms = new TreeMap<>();
+    private final Postings docs = new Postings(); // every indexed note, positions[i] = {token count}
+    private long totalTokens;
+    private List<JournalEntry> source;
+    private boolean built;
+
+    @Override public void loaded(List<JournalEntry> entries) {
+        source = entries;
+        built = false;
+        clear();
+    }
+
+    private void clear() {
+        terms.clear();
+        docs.ids = new long[2]; docs.positions = new int[2][]; docs.size = 0;
+        totalTokens = 0;
+    }
+
+    boolean isBuilt() { return built; }
+
+    private void ensureBuilt() {
+        if (built) return;
+        for (int i = 0; i < source.size(); i++) {
+            JournalEntry e = (source instanceof LazyEntryList) ? ((LazyEntryList) source).peek(i) : source.get(i);
+            add(e.getId(), e.getNote());
+        }
+        built = true;
+    }
+
+    @Override public void entryAdded(JournalEntry e) { if (built) add(e.getId(), e.getNote()); }
+    @Override public void entryRemoved(JournalEntry e) { if (built) remove(e.getId(), e.getNote()); }
+
+    @Override public void feedbackChanged(JournalEntry e, String oldNote, Date oldEndTime) {
+        if (!built || Objects.equals(oldNote, e.getNote())) return;
+        remove(e.getId(), oldNote);
+        add(e.getId(), e.getNote());
+    }
+
+    // Lower-cased runs of letters and digits
+    static List<String> tokens(String text) {
+        List<String> out = new ArrayList<>();
+        if (text == null) return out;
+        int n = text.length();
+        for (int i = 0; i < n; ) {
+            while (i < n && !Character.isLetterOrDigit(text.charAt(i))) i++;
+            int start = i;
+            while (i < n && Character.isLetterOrDigit(text.charAt(i))) i++;
+            if (i > start) out.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+        }
+        return out;
+    }
+
+    private void add(long id, String note) {
+        List<String> toks = tokens(note);
+        if (toks.isEmpty()) return;
+        Map<String, int[]> pos = new HashMap<>();
+        Map<String, Integer> counts = new HashMap<>();
+        for (String t : toks) counts.merge(t, 1, Integer::sum);
+        for (int p = 0; p < toks.size(); p++) {
+            String t = toks.get(p);
+            int[] a = pos.computeIfAbsent(t, k -> new int[counts.get(k) + 1]); // last slot: fill count
+            a[a[a.length - 1]++] = p;
+        }
+        for (Map.Entry<String, int[]> t : pos.entrySet())
+            terms.computeIfAbsent(t.getKey(), k -> new Postings()).put(id, Arrays.copyOf(t.getValue(), t.getValue().length - 1));
+        docs.put(id, new int[]{toks.size()});
+        totalTokens += toks.size();
+    }
+
+    private void remove(long id, String note) {
+        int d = docs.find(id);
+        if (d < 0) return;
+        totalTokens -= docs.positions[d][0];
+        docs.remove(id);
+        for (String t : new HashSet<>(tokens(note))) {
+            Postings p = terms.get(t);
+            if (p == null) continue;
+            p.remove(id);
+            if (p.size == 0) terms.remove(t);
+        }
+    }
+
+    // Ranked ids, best first; an empty query matches nothing
+    List<Hit> search(String query, int limit) {
+        ensureBuilt();
+        List<List<String>> phrases = new ArrayList<>();   // one word per plain clause
+        List<String> prefixes = new ArrayList<>();
+        int q = 0;
+        while (q < query.length()) {
+            if (query.charAt(q) == '"') {
+                int close = query.indexOf('"', q + 1);
+                if (close < 0) close = query.length();
+                List<String> phrase = tokens(query.substring(q + 1, close));
+                if (!phrase.isEmpty()) phrases.add(phrase);
+                q = close + 1;
+                continue;
+            }
+            int end = q;
+            while (end < query.length() && !Character.isWhitespace(query.charAt(end)) && query.charAt(end) != '"') end++;
+            String word = query.substring(q, end);
+            List<String> toks = tokens(word);
+            if (word.endsWith("*") && toks.size() == 1) prefixes.add(toks.get(0));
+            else for (String t : toks) phrases.add(List.of(t));
+            q = Math.max(end, q + 1);
+        }
+        if (phrases.isEmpty() && prefixes.isEmpty()) return new ArrayList<>();
+
+        // Candidates: the intersection of every clause, smallest clause first
+        List<long[]> clauses = new ArrayList<>();
+        Set<String> scored = new LinkedHashSet<>();
+        for (List<String> phrase : phrases) {
+            long[] ids = null;
+            for (String t : phrase) {
+                Postings p = terms.get(t);
+                long[] tIds = p == null ? new long[0] : Arrays.copyOf(p.ids, p.size);
+                ids = ids == null ? tIds : JournalIndex.intersect(ids.length <= tIds.length ? ids : tIds, ids.length <= tIds.length ? tIds : ids);
+                scored.add(t);
+            }
+            clauses.add(ids);
+        }
+        // A prefix clause is the union of its terms' postings, concatenated and then sorted once
+        for (String prefix : prefixes) {
+            SortedMap<String, Postings> matched = terms.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+            int n = 0;
+            for (Postings p : matched.values()) n += p.size;
+            long[] union = new long[n];
+            int pos = 0;
+            for (Map.Entry<String, Postings> t : matched.entrySet()) {
+                System.arraycopy(t.getValue().ids, 0, union, pos, t.getValue().size);
+                pos += t.getValue().size;
+                scored.add(t.getKey());
+            }
+            Arrays.sort(union);
+            int distinct = 0;
+            for (int i = 0; i < n; i++) if (distinct == 0 || union[i] != union[distinct - 1]) union[distinct++] = union[i];
+            clauses.add(Arrays.copyOf(union, distinct));
+        }
+        clauses.sort(Comparator.comparingInt(a -> a.length));
+        long[] candidates = clauses.get(0);
+        for (int i = 1; i < clauses.size() && candidates.length > 0; i++) candidates = JournalIndex.intersect(candidates, clauses.get(i));
+
+        // Scores term by term, walking the shorter of the term's postings and the candidates, so a
+        // broad prefix costs its postings rather than candidates times matched terms
+        double avgLen = docs.size == 0 ? 1 : (double) totalTokens / docs.size;
+        double[] scores = new double[candidates.length];
+        for (String t : scored) {
+            Postings p = terms.get(t);
+            if (p == null) continue; // an unknown word: no candidates either
+            double idf = Math.log(1 + (docs.size - p.size + 0.5) / (p.size + 0.5));
+            if (p.size <= candidates.length) {
+                for (int i = 0; i < p.size; i++) {
+                    int c = Arrays.binarySearch(candidates, p.ids[i]);
+                    if (c >= 0) scores[c] += bm25(idf, p.positions[i].length, p.ids[i], avgLen);
+                }
+            } else {
+                for (int c = 0; c < candidates.length; c++) {
+                    int i = p.find(candidates[c]);
+                    if (i >= 0) scores[c] += bm25(idf, p.positions[i].length, candidates[c], avgLen);
+                }
+            }
+        }
+        PriorityQueue<Hit> top = new PriorityQueue<>(Comparator.comparingDouble((Hit h) -> h.score));
+        for (int c = 0; c < candidates.length; c++) {
+            boolean matches = true;
+            for (List<String> phrase : phrases) if (phrase.size() > 1 && !(matches = containsPhrase(candidates[c], phrase))) break;
+            if (!matches) continue;
+            top.add(new Hit(candidates[c], scores[c]));
+            if (top.size() > limit) top.poll();
+        }
+        List<Hit> ranked = new ArrayList<>(top);
+        ranked.sort((a, b) -> a.score != b.score ? Double.compare(b.score, a.score) : Long.compare(a.id, b.id));
+        return ranked;
+    }
+
+    private double bm25(double idf, int tf, long id, double avgLen) {
+        int len = docs.positions[docs.find(id)][0];
+        return idf * tf * (K1 + 1) / (tf + K1 * (1 - B + B * len / avgLen));
+    }
+
+    private boolean containsPhrase(long id, List<String> phrase) {
+        int[][] pos = new int[phrase.size()][];
+        for (int k = 0; k < pos.length; k++) {
+            Postings p = terms.get(phrase.get(k));
+            pos[k] = p.positions[p.find(id)];
+        }
+        next:
+        for (int start : pos[0]) {
+            for (int k = 1; k < pos.length; k++) if (Arrays.binarySearch(pos[k], start + k) < 0) continue next;
+            return true;
+        }
+        return false;
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeLong(totalTokens);
+        writePostings(out, docs);
+        out.writeInt(terms.size());
+        for (Map.Entry<String, Postings> t : terms.entrySet()) {
+            out.writeUTF(t.getKey());
+            writePostings(out, t.getValue());
+        }
+    }
+
+    private static void writePostings(DataOutputStream out, Postings p) throws IOException {
+        out.writeInt(p.size);
+        for (int i = 0; i < p.size; i++) {
+            out.writeLong(p.ids[i]);
+            out.writeInt(p.positions[i].length);
+            for (int v : p.positions[i]) out.writeInt(v);
+        }
+    }
+
+    // A read that fails partway leaves the index empty, for ensureBuilt to fill from the entries
+    boolean read(DataInputStream in) throws IOException {
+        clear();
+        try {
+            totalTokens = in.readLong();
+            readPostings(in, docs);
+            for (int n = in.readInt(); n > 0; n--) {
+                Postings p = new Postings();
+                terms.put(in.readUTF(), p);
+                readPostings(in, p);
+            }
+        } catch (IOException | RuntimeException e) {
+            clear();
+            throw e;
+        }
+        built = true;
+        return true;
+    }
+
+    private static void readPostings(DataInputStream in, Postings p) throws IOException {
+        int n = in.readInt();
+        p.ids = new long[Math.max(2, n)];
+        p.positions = new int[p.ids.length][];
+        for (int i = 0; i < n; i++) {
+            p.ids[i] = in.readLong();
+            if (i > 0 && p.ids[i] <= p.ids[i - 1]) throw new IOException("note postings out of order");
+            int[] pos = new int[in.readInt()];
+            for (int k = 0; k < pos.length; k++) pos[k] = in.readInt();
+            p.positions[i] = pos;
+        }
+        p.size = n;
+    }
+}
+
+// ================= Report Export =================
+enum ExportFormat { TEXT, CSV, JSONL }
+
+// Streams entries one at a time into a reused buffer that is handed to the target in large
+// pieces, so reports and exports take the same memory for ten entries or ten million.
+// DateTimeFormatter is immutable, so the shared formatters are safe across server sessions.
+class EntryWriter implements Flushable {
+    static final DateTimeFormatter DISPLAY = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm").withZone(ZoneId.systemDefault());
+    static final DateTimeFormatter ISO = DateTimeFormatter.ISO_OFFSET_DATE_TIME.withZone(ZoneId.systemDefault());
+    static final String CSV_HEADER = "index,id,start,end,mood,duration_minutes,feedback,tags";
+    private static final int FLUSH_AT = 1 << 14;
+
+    private final Appendable out;
+    private final ExportFormat format;
+    private final StringBuilder buf = new StringBuilder(FLUSH_AT + 1024);
+
+    EntryWriter(Appendable out, ExportFormat format) {
+        this.out = out;
+        this.format = format;
+        if (format == ExportFormat.CSV) buf.append(CSV_HEADER).append('\n');
+    }
+
+    void write(JournalEntry e, int index) throws IOException {
+        switch (format) {
+            case TEXT: appendText(buf, e, index); break;
+            case CSV: appendCsv(buf, e, index); break;
+            case JSONL: appendJson(buf, e, index); break;
+        }
+        buf.append('\n');
+        if (buf.length() >= FLUSH_AT) drain();
+    }
+
+    // A TEXT entry whose body was rendered earlier, see RenderCache
+    void writeText(String body, int index) throws IOException {
+        appendTextHeader(buf, index).append(body).append('\n');
+        if (buf.length() >= FLUSH_AT) drain();
+    }
+
+    // Free text (headings, "No entries found.") kept in order with the entries
+    void line(String text) throws IOException {
+        buf.append(text).append('\n');
+        if (buf.length() >= FLUSH_AT) drain();
+    }
+
+    private void drain() throws IOException {
+        out.append(buf);
+        buf.setLength(0);
+    }
+
+    @Override public void flush() throws IOException {
+        drain();
+        if (out instanceof Flushable) ((Flushable) out).flush();
+    }
+
+    // The console layout of JournalEntry.toString(index)
+    static void appendText(StringBuilder sb, JournalEntry e, int index) {
+        appendTextBody(appendTextHeader(sb, index), e);
+    }
+
+    static StringBuilder appendTextHeader(StringBuilder sb, int index) {
+        return sb.append("\n--- Entry ").append(index).append(" ---\n");
+    }
+
+    // Everything after the header, which depends only on the entry
+    static void appendTextBody(StringBuilder sb, JournalEntry e) {
+        sb.append("[Start: ");
+        if (e.getStartTime() != null) DISPLAY.formatTo(e.getStartTime().toInstant(), sb);
+        else sb.append("N/A");
+        sb.append("]\nMood: ").append(e.getMood());
+        List<String> tags = e.getTags();
+        for (int i = 0; i < tags.size(); i++) sb.append(i == 0 ? " Tags: " : ", ").append(tags.get(i));
+        sb.append("\nDuration: ").append(MentalWellnessJournal3.getDurationString(e.getDurationMinutes() * 60 * 1000))
+          .append("\nFeedback: ").append(e.getNote() != null ? e.getNote() : "❗ Feedback pending")
+          .append("\n--------------");
+    }
+
+    // RFC 4180: fields with a comma, quote or line break are quoted, quotes doubled; tags joined by ' '
+    static void appendCsv(StringBuilder sb, JournalEntry e, int index) {
+        sb.append(index).append(',').append(e.getId()).append(',');
+        if (e.getStartTime() != null) ISO.formatTo(e.getStartTime().toInstant(), sb);
+        sb.append(',');
+        if (e.getEndTime() != null) ISO.formatTo(e.getEndTime().toInstant(), sb);
+        sb.append(',').append(e.getMood().name()).append(',').append(e.getDurationMinutes()).append(',');
+        csvField(sb, e.getNote());
+        sb.append(',');
+        csvField(sb, String.join(" ", e.getTags()));
+    }
+
+    private static void csvField(StringBuilder sb, String v) {
+        if (v == null) return;
+        boolean quote = false;
+        for (int i = 0; i < v.length() && !quote; i++) {
+            char c = v.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) { sb.append(v); return; }
+        sb.append('"');
+        for (int i = 0; i < v.length(); i++) {
+            char c = v.charAt(i);
+            if (c == '"') sb.append('"');
+            sb.append(c);
+        }
+        sb.append('"');
+    }
+
+    static void appendJson(StringBuilder sb, JournalEntry e, int index) {
+        sb.append("{\"index\":").append(index).append(",\"id\":").append(e.getId()).append(",\"start\":");
+        jsonTime(sb, e.getStartTime());
+        sb.append(",\"end\":");
+        jsonTime(sb, e.getEndTime());
+        sb.append(",\"mood\":\"").append(e.getMood().name()).append("\",\"durationMinutes\":").append(e.getDurationMinutes())
+          .append(",\"feedback\":");
+        jsonString(sb, e.getNote());
+        sb.append(",\"tags\":[");
+        List<String> tags = e.getTags();
+        for (int i = 0; i < tags.size(); i++) {
+            if (i > 0) sb.append(',');
+            jsonString(sb, tags.get(i));
+        }
+        sb.append("]}");
+    }
+
+    private static void jsonTime(StringBuilder sb, Date d) {
+        if (d == null) { sb.append("null"); return; }
+        sb.append('"');
+        ISO.formatTo(d.toInstant(), sb);
+        sb.append('"');
+    }
+
+    private static void jsonString(StringBuilder sb, String v) {
+        if (v == null) { sb.append("null"); return; }
+        sb.append('"');
+        for (int i = 0; i < v.length(); i++) {
+            char c = v.charAt(i);
+            if (c == '"' || c == '\\') sb.append('\\').append(c);
+            else if (c == '\n') sb.append("\\n");
+            else if (c == '\r') sb.append("\\r");
+            else if (c == '\t') sb.append("\\t");
+            else if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+            else sb.append(c);
+        }
+        sb.append('"');
+    }
+}
+
+// Console text of entries by id, without the "--- Entry n ---" header, which depends on where
+// the entry is listed. Every manager's cache keeps its text in one Store with one budget for the
+// process, so a server holding many managers stays bounded; past the budget the least recently
+// shown entries of any journal go first. The default budget is an eighth of the heap, since a
+// view of more entries than fit misses throughout. As a listener it drops an entry's text when
+// its feedback changes or it is deleted, and on load, when ids may be reassigned, it moves to a
+// fresh key space whose predecessor simply ages out. Guarded by the manager lock; the Store has
+// its own.
+class RenderCache implements JournalListener {
+    // -Djournal.renderCacheChars: about two bytes per char
+    static final long MAX_CHARS = Long.getLong("journal.renderCacheChars", Runtime.getRuntime().maxMemory() / 16);
+    static final Store SHARED = new Store(MAX_CHARS);
+    private static final AtomicLong SPACES = new AtomicLong();
+
+    private static final class Key {
+        final long space, id;
+        Key(long space, long id) { this.space = space; this.id = id; }
+        @Override public boolean equals(Object o) { return o instanceof Key && ((Key) o).space == space && ((Key) o).id == id; }
+        @Override public int hashCode() { return Long.hashCode(space * 0x9E3779B97F4A7C15L + id); }
+    }
+
+    static final class Store {
+        private final long maxChars;
+        private final LinkedHashMap<Key, String> text = new LinkedHashMap<>(256, 0.75f, true);
+        private long chars;
+
+        Store(long maxChars) { this.maxChars = maxChars; }
+
+        synchronized String get(Key k) { return text.get(k); }
+
+        synchronized void put(Key k, String body) {
+            if (body.length() > maxChars) return;
+            String old = text.put(k, body);
+            chars += body.length() - (old != null ? old.length() : 0);
+            for (Iterator<String> it = text.values().iterator(); chars > maxChars; ) {
+                chars -= it.next().length();
+                it.remove();
+            }
+        }
+
+        synchronized void remove(Key k) {
+            String old = text.remove(k);
+            if (old != null) chars -= old.length();
+        }
+
+        synchronized int size() { return text.size(); }
+        synchronized long chars() { return chars; }
+    }
+
+    private final Store store;
+    private long space = SPACES.getAndIncrement();
+    private long hits, misses;
+
+    RenderCache(Store store) { this.store = store; }
+
+    // null on a miss
+    String get(long id) {
+        String body = store.get(new Key(space, id));
+        if (body != null) hits++; else misses++;
+        return body;
+    }
+
+    String render(JournalEntry e) {
+        StringBuilder sb = new StringBuilder(160);
+        EntryWriter.appendTextBody(sb, e);
+        String body = sb.toString();
+        store.put(new Key(space, e.getId()), body);
+        return body;
+    }
+
+    void invalidate(long id) { store.remove(new Key(space, id)); }
+
+    void clear() { space = SPACES.getAndIncrement(); }
+
+    long hits() { return hits; }
+    long misses() { return misses; }
+
+    @Override public void loaded(List<JournalEntry> entries) { clear(); }
+    @Override public void entryRemoved(JournalEntry e) { invalidate(e.getId()); }
+    @Override public void feedbackChanged(JournalEntry e, String oldNote, Date oldEndTime) { invalidate(e.getId()); }
+}
+
+// ================= Journal Manager =================
+// Public methods are synchronized so one manager can serve several sessions of the same user.
+// A logged binary journal is an immutable snapshot plus log segments of SEGMENT_RECORDS records.
+// Once the segments hold more records than the snapshot has entries, the log rolls to the next generation and the
+// compactor thread writes that generation's snapshot from a copy of the entries, so readers
+// and writers carry on meanwhile; the covered segments are deleted after the rename.
+class JournalManager {
+    static final long SEGMENT_RECORDS = 1 << 16;
+    static final long COMPACT_AFTER = Long.getLong("journal.compactAfter", 1024);
+    private static final ExecutorService COMPACTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "journal-compactor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private TombstoneEntryList entries = new ObjectEntryList();
+    private JournalLog log;
+    private long loadedRecords;
+    private String binaryFile;
+    private int binaryGeneration = -1; // >= 0 once loaded from or saved as a binary journal
+    private int segmentGen = -1, segmentSeq; // the segment the log appends to
+    private long sealedRecords;        // records in the live segments before it
+    private int snapshotEntries;
+    private long compactBackoff;       // raised after a failed compaction so it is not retried per append
+    private boolean segmentLog;        // the log appends to binaryFile's segments
+    private boolean compacting;
+    private String password;
+    private JournalCrypto crypto;      // set once the text journal is AES-GCM encrypted
+    private boolean loadFailed;        // never overwrite or append to a journal we could not read
+    private boolean statsRestored;     // statistics came from the rollup sidecar, not a scan
+    private final TagDictionary tags = new TagDictionary();
+    private FileTagCodes fileCodes;    // tag numbering of the file the log appends to
+    private final MoodStatistics stats = new MoodStatistics();
+    private final JournalIndex index = new JournalIndex(tags);
+    private final TagPairs pairs = new TagPairs(tags);
+    private final NoteIndex notes = new NoteIndex();
+    private final PendingFeedback pending = new PendingFeedback();
+    private final RenderCache rendered = new RenderCache(RenderCache.SHARED);
+    private final List<JournalListener> listeners = new ArrayList<>(List.of(stats, index, pairs, notes, pending, rendered));
+    private long nextId;
+
+    public JournalManager() { this(false); }
+
+    // The binary journal, when the user switched to it, supersedes the text one it was converted
+    // from; every mode opens a user's journal through this so they never split across the two
+    static File journalOf(File dir, String username) {
+        File bin = new File(dir, username + "_journal.bin");
+        return bin.exists() ? bin : new File(dir, username + "_journal.txt");
+    }
+
+    // columnar: keep text journals in a ColumnarEntryStore instead of one object per entry
+    public JournalManager(boolean columnar) {
+        if (columnar) entries = new ColumnarEntryStore(tags);
+        for (JournalListener l : listeners) l.loaded(entries);
+    }
+
+    public synchronized void addListener(JournalListener l) { listeners.add(l); l.loaded(entries); }
+    // Live aggregates: callers sharing the manager across threads must hold its lock while reading
+    public synchronized MoodStatistics getStatistics() { return stats; }
+    public synchronized int size() { return entries.size(); }
+    public synchronized JournalEntry getEntry(int idx) { return entries.get(idx); }
+
+    public synchronized void addEntry(JournalEntry entry) {
+        entry.assignId(nextId++);
+        entry.bindTags(tags);
+        entries.add(entry);
+        if (log != null) {
+            try { log.appendEntry(entry); afterAppend(); }
+            catch (IOException e) { System.out.println("Error writing journal log: " + e.getMessage()); }
+        }
+        for (JournalListener l : listeners) l.entryAdded(entry);
+    }
+
+    // Routes feedback through the manager so log mode and listeners see it
+    public synchronized void setFeedback(JournalEntry entry, String note, Date endTime) {
+        String oldNote = entry.getNote();
+        Date oldEnd = entry.getEndTime();
+        entry.setFeedback(note, endTime);
+        int pos = positionOf(entry.getId());
+        if (pos >= 0) entries.set(pos, entry); // columnar stores hand out copies
+        if (pos >= 0) appendToLog(JournalLog.updateRecord(entry));
+        for (JournalListener l : listeners) l.feedbackChanged(entry, oldNote, oldEnd);
+    }
+
+    public synchronized void deleteEntry(int idx) {
+        JournalEntry removed = entries.remove(idx);
+        appendToLog(JournalLog.tombstoneRecord(removed.getId()));
+        for (JournalListener l : listeners) l.entryRemoved(removed);
+    }
+
+    private long idAt(int i) { return JournalLog.idAt(entries, i); }
+
+    // -1 if the entry is gone
+    int positionOf(long id) { return JournalLog.positionOf(entries, id); }
+
+    // Notes matching every word, "phrase" and prefix* of text, best match first
+    public synchronized List<JournalEntry> search(String text, int limit) {
+        List<JournalEntry> found = new ArrayList<>();
+        for (NoteIndex.Hit h : notes.search(text, limit)) found.add(entries.get(positionOf(h.id)));
+        return found;
+    }
+
+    // Entries matching every criterion of q, in journal order
+    public synchronized List<JournalEntry> query(JournalQuery q) {
+        long[] ids = index.find(q);
+        if (ids == null) return new ArrayList<>(entries);
+        List<JournalEntry> result = new ArrayList<>(ids.length);
+        for (long id : ids) result.add(entries.get(positionOf(id)));
+        return result;
+    }
+
+    // Ids are stored with the entries; this only repairs journals whose ids do not ascend
+    private void assignIds() {
+        nextId = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            long id = idAt(i);
+            if (id < nextId) {
+                id = nextId;
+                JournalEntry e = entries.get(i);
+                e.assignId(id);
+                entries.set(i, e);
+            }
+            nextId = id + 1;
+        }
+    }
+
+    // Switches to append-only mode: every mutation from now on is written to the end of filename,
+    // or to its last log segment when filename is a binary journal
+    public synchronized void openLog(String filename, FsyncPolicy policy) throws IOException {
+        checkWritable();
+        closeLog();
+        segmentLog = binaryGeneration >= 0 && filename.equals(binaryFile);
+        String target = segmentLog ? MappedJournal.segmentFile(filename, segmentGen, segmentSeq) : filename;
+        if (fileCodes == null) fileCodes = new FileTagCodes(tags);
+        log = new JournalLog(target, policy, loadedRecords, fileCodes, segmentLog ? null : crypto);
+        if (segmentLog) maybeCompact();
+    }
+
+    private void afterAppend() throws IOException {
+        if (!segmentLog) return;
+        if (log.getRecords() >= SEGMENT_RECORDS) rollSegment(segmentGen, segmentSeq + 1);
+        maybeCompact();
+    }
+
+    // Each segment numbers its tags afresh, so it replays without the ones before it
+    private void rollSegment(int gen, int seq) throws IOException {
+        FsyncPolicy policy = log.getPolicy();
+        long records = log.getRecords();
+        log.close();
+        log = null;
+        sealedRecords += records;
+        segmentGen = gen;
+        segmentSeq = seq;
+        fileCodes = new FileTagCodes(tags);
+        loadedRecords = 0;
+        log = new JournalLog(MappedJournal.segmentFile(binaryFile, gen, seq), policy, 0, fileCodes);
+    }
+
+    private void maybeCompact() throws IOException {
+        if (compacting || sealedRecords + log.getRecords() <= Math.max(COMPACT_AFTER, snapshotEntries) + compactBackoff) return;
+        int target = segmentGen + 1;
+        rollSegment(target, 0);
+        List<JournalEntry> frozen = entries.copy();
+        String file = binaryFile;
+        int from = binaryGeneration;
+        long covered = sealedRecords;
+        compacting = true;
+        COMPACTOR.execute(() -> compact(frozen, file, from, target, covered));
+    }
+
+    // Runs on the compactor without the lock. The copy shares entry objects with the live list,
+    // so feedback set meanwhile may or may not reach the snapshot; its "U" record in the new
+    // generation's segments applies either way.
+    private void compact(List<JournalEntry> frozen, String file, int from, int target, long covered) {
+        long t0 = System.nanoTime();
+        IOException failure = null;
+        try { MappedJournal.write(frozen, tags, file, target); }
+        catch (IOException e) { failure = e; }
+        Metrics.COMPACTION.stop(t0, new File(file).length());
+        synchronized (this) {
+            try {
+                if (failure == null) {
+                    binaryGeneration = target;
+                    snapshotEntries = frozen.size();
+                    sealedRecords -= covered;
+                    compactBackoff = 0;
+                    for (int g = from; g < target; g++) MappedJournal.deleteSegments(file, g);
+                }
+            } catch (IOException e) { failure = e; }
+            finally {
+                if (failure != null) compactBackoff += Math.max(COMPACT_AFTER, snapshotEntries);
+                compacting = false;
+                notifyAll();
+            }
+        }
+        if (failure != null) System.out.println("Journal compaction failed: " + failure.getMessage());
+    }
+
+    private void awaitCompaction() {
+        boolean interrupted = false;
+        while (compacting) {
+            try { wait(); }
+            catch (InterruptedException e) { interrupted = true; }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    // Needed before loading an encrypted journal and before encrypt()
+    public synchronized void setPassword(String password) { this.password = password; }
+    public synchronized boolean isEncrypted() { return crypto != null; }
+    public synchronized boolean isLoadFailed() { return loadFailed; }
+
+    // Migrates an XOR text journal to authenticated block encryption with a full rewrite
+    public synchronized void encrypt(String filename) throws IOException {
+        if (binaryGeneration >= 0) throw new IOException("Binary journals keep the XOR format");
+        if (password == null) throw new IOException("No password to derive the journal key from");
+        checkWritable();
+        boolean logged = log != null && log.getFilename().equals(filename);
+        FsyncPolicy policy = logged ? log.getPolicy() : null;
+        if (logged) closeLog();
+        crypto = JournalCrypto.create(password);
+        rewrite(filename);
+        if (logged) log = new JournalLog(filename, policy, loadedRecords, fileCodes, crypto);
+        saveSidecars(filename); // the old sidecar was not sealed
+    }
+
+    private void checkWritable() throws IOException {
+        if (loadFailed) throw new IOException("Journal could not be loaded; refusing to modify it");
+    }
+
+    public synchronized void closeLog() throws IOException {
+        awaitCompaction();
+        if (log != null) { log.close(); log = null; }
+        segmentLog = false;
     }
 
-    private void calculateDuration() {
-        if (startTime != null && endTime != null)
-            this.durationMinutes = (endTime.getTime() - startTime.getTime()) / (1000 * 60);
-        else
-            this.durationMinutes = 0;
+    private void appendToLog(String record) {
+        if (log == null) return;
+        try { log.append(record); afterAppend(); }
+        catch (IOException e) { System.out.println("Error writing journal log: " + e.getMessage()); }
     }
 
-    public Date getStartTime() { return startTime; }
-    public Date getEndTime() { return endTime; }
-    public Mood getMood() { return mood; }
-    public String getNote() { return note; }
-    public long getDurationMinutes() { return durationMinutes; }
-    public List<String> getTags() { return tags; }
-    public boolean needsFeedback() { return note == null || note.isEmpty(); }
+    public void viewAll() { viewAll(System.out); }
+    public synchronized void viewAll(PrintStream out) {
+        if (entries.isEmpty()) { out.println("No journal entries yet."); return; }
+        try { export(out, ExportFormat.TEXT); }
+        catch (IOException e) { throw new UncheckedIOException(e); } // PrintStream does not throw
+    }
 
-    public String toString(int index) {
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm");
-        String startStr = (startTime != null) ? sdf.format(startTime) : "N/A";
-        String tagsStr = tags.isEmpty() ? "" : " Tags: " + String.join(", ", tags);
-        String durationStr = MentalWellnessJournal3.getDurationString(durationMinutes * 60 * 1000);
-        String feedbackStr = (note != null) ? note : "❗ Feedback pending";
-
-        return String.format("\n--- Entry %d ---\n", index)
-             + "[Start: " + startStr + "]\n"
-             + "Mood: " + mood.toString() + tagsStr + "\n"
-             + "Duration: " + durationStr + "\n"
-             + "Feedback: " + feedbackStr + "\n"
-             + "--------------";
-    }
-
-    public String serialize() {
-        String tagsStr = String.join(",", tags);
-        String noteStr = (note != null) ? note.replace(";", ",") : "";
-        long end = (endTime != null) ? endTime.getTime() : 0;
-        return startTime.getTime() + ";" + end + ";" + mood.name() + ";" + noteStr + ";" + tagsStr;
+    // One screen at a time; Enter shows the next page, q stops
+    public synchronized void viewPaged(Scanner sc, PrintStream out, int pageSize) {
+        if (entries.isEmpty()) { out.println("No journal entries yet."); return; }
+        for (int from = 0; from < entries.size(); from += pageSize) {
+            int to = Math.min(entries.size(), from + pageSize);
+            StringBuilder page = new StringBuilder(pageSize * 160);
+            for (int i = from; i < to; i++) { EntryWriter.appendTextHeader(page, i + 1).append(textOf(i)).append('\n'); }
+            out.print(page);
+            if (to == entries.size()) break;
+            out.print("-- " + to + " of " + entries.size() + ", Enter for more, q to stop -- ");
+            if (!sc.hasNextLine() || sc.nextLine().trim().equalsIgnoreCase("q")) break;
+        }
     }
 
-    public static JournalEntry deserialize(String line) {
-        String[] parts = SimpleCipher.decrypt(line).split(";",5);
-        if (parts.length < 5) return null;
-        Date start = new Date(Long.parseLong(parts[0]));
-        Date end = (Long.parseLong(parts[1]) == 0) ? null : new Date(Long.parseLong(parts[1]));
-        Mood mood = Mood.valueOf(parts[2]);
-        String note = parts[3].isEmpty() ? null : parts[3];
-        List<String> tags = parts[4].isEmpty() ? new ArrayList<>() : Arrays.asList(parts[4].split(","));
-        return new JournalEntry(start,end,mood,note,tags);
+    // Streams every entry in journal order; out is flushed but not closed
+    public synchronized void export(Appendable out, ExportFormat format) throws IOException {
+        EntryWriter w = new EntryWriter(out, format);
+        if (format == ExportFormat.TEXT) for (int i = 0; i < entries.size(); i++) w.writeText(textOf(i), i + 1);
+        else for (int i = 0; i < entries.size(); i++) w.write(readEntry(i), i + 1);
+        w.flush();
     }
-}
 
-// ================= Journal Manager =================
-class JournalManager {
-    private List<JournalEntry> entries = new ArrayList<>();
+    public synchronized void exportToFile(String filename, ExportFormat format) throws IOException {
+        try (Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(filename), StandardCharsets.UTF_8), 1 << 16)) {
+            export(w, format);
+        }
+    }
 
-    public void addEntry(JournalEntry entry) { entries.add(entry); }
-    public void viewAll() {
-        if (entries.isEmpty()) System.out.println("No journal entries yet.");
-        else for (int i = 0; i < entries.size(); i++) System.out.println(entries.get(i).toString(i+1));
+    // Console text of the entry at i; a cache hit needs only its id, so nothing is decoded
+    private String textOf(int i) {
+        String body = rendered.get(idAt(i));
+        return body != null ? body : rendered.render(readEntry(i));
     }
 
-    public void deleteEntryByIndex(Scanner sc) {
+    private String textOf(JournalEntry e) {
+        String body = rendered.get(e.getId());
+        return body != null ? body : rendered.render(e);
+    }
+
+    // Read-only access that does not fill the lazy binary cache
+    private JournalEntry readEntry(int i) {
+        return (entries instanceof LazyEntryList) ? ((LazyEntryList) entries).peek(i) : entries.get(i);
+    }
+
+    public synchronized void deleteEntryByIndex(Scanner sc) {
         if (entries.isEmpty()) { System.out.println("No entries to delete."); return; }
         viewAll();
         System.out.print("\nEnter entry number to delete: ");
@@ -116,99 +4057,460 @@ class JournalManager {
             int idx = Integer.parseInt(sc.nextLine()) - 1;
             if (idx >= 0 && idx < entries.size()) {
                 System.out.print("Confirm delete? (Y/N): ");
-                String conf = sc.nextLine().trim().toLowerCase();
-                if (conf.equals("y")) { entries.remove(idx); System.out.println("Deleted."); }
+                String conf = sc.nextLine().trim().toLowerCase(Locale.ROOT);
+                if (conf.equals("y")) { deleteEntry(idx); System.out.println("Deleted."); }
                 else System.out.println("Cancelled.");
             } else System.out.println("Invalid number.");
         } catch(Exception e){ System.out.println("Invalid input."); }
     }
 
-    public void filterByMood(Mood mood) {
-        System.out.println("\n--- Entries with Mood: " + mood + " ---");
-        List<JournalEntry> filtered = new ArrayList<>();
-        for (JournalEntry e : entries) if (e.getMood() == mood) filtered.add(e);
-        if (filtered.isEmpty()) System.out.println("No entries found.");
-        else for (int i=0;i<filtered.size();i++) System.out.println(filtered.get(i).toString(i+1));
+    public void filterByMood(Mood mood) { filterByMood(mood, System.out); }
+    public synchronized void filterByMood(Mood mood, PrintStream out) {
+        out.println("\n--- Entries with Mood: " + mood + " ---");
+        printEntries(query(new JournalQuery().mood(mood)), out);
     }
 
-    public void generateMoodStatistics() {
-        if (entries.isEmpty()) { System.out.println("No entries to analyze."); return; }
-        SimpleDateFormat dayFormat = new SimpleDateFormat("yyyy-MM-dd");
-        Map<String, List<JournalEntry>> dayGroups = new TreeMap<>();
-        for (JournalEntry e : entries) {
-            String day = (e.getStartTime() != null) ? dayFormat.format(e.getStartTime()) : "Unknown";
-            dayGroups.computeIfAbsent(day, k -> new ArrayList<>()).add(e);
-        }
-        System.out.println("\n--- Mood Stats Day by Day ---");
-        for (String day : dayGroups.keySet()) {
-            List<JournalEntry> dayEntries = dayGroups.get(day);
-            Map<Mood, Integer> moodCount = new HashMap<>();
-            for (JournalEntry e : dayEntries) moodCount.put(e.getMood(), moodCount.getOrDefault(e.getMood(),0)+1);
-            Mood common=null; int max=0;
-            System.out.println("Date: "+day);
-            for (Mood m : moodCount.keySet()) {
-                int count = moodCount.get(m);
-                double percent = (count*100.0)/dayEntries.size();
-                System.out.printf("%s: %d (%.1f%%)\n", m, count, percent);
-                if(count>max){ max=count; common=m; }
-            }
-            System.out.println("Most common mood: "+common+"\n");
+    // Entries of this journal, such as query or search results, numbered in the order given
+    public synchronized void printEntries(List<JournalEntry> found, PrintStream out) {
+        if (found.isEmpty()) { out.println("No entries found."); return; }
+        EntryWriter w = new EntryWriter(out, ExportFormat.TEXT);
+        try {
+            for (int i = 0; i < found.size(); i++) w.writeText(textOf(found.get(i)), i + 1);
+            w.flush();
+        } catch (IOException e) { throw new UncheckedIOException(e); }
+    }
+
+    public void generateMoodStatistics() { generateMoodStatistics(System.out); }
+    public synchronized void generateMoodStatistics(PrintStream out) {
+        if (entries.isEmpty()) { out.println("No entries to analyze."); return; }
+        long t0 = System.nanoTime();
+        stats.print(out);
+        Metrics.STATISTICS.stop(t0);
+    }
+
+    // Streaks, 7 and 30 day mood distributions and minutes-to-feedback quantiles, scanned in parallel
+    public synchronized TrendReport trends() { return new TrendAnalyzer().trends(entries, ForkJoinPool.commonPool()); }
+
+    public void printTrends(PrintStream out) { trends().print(out, new TrendAnalyzer().today()); }
+
+    // This journal's share of the cross-user aggregate
+    public synchronized OrgAggregate aggregate() {
+        OrgAggregate a = new OrgAggregate();
+        a.users = 1;
+        a.entries = entries.size();
+        a.moods.merge(new TrendAnalyzer().scan(entries, 0, entries.size()));
+        int[] uses = new int[tags.size()];
+        if (entries instanceof EntryColumns) {
+            EntryColumns cols = (EntryColumns) entries;
+            for (int i = 0; i < entries.size(); i++) for (int id : cols.tagIdsAt(i)) uses[id]++;
+        } else for (JournalEntry e : entries) for (int id : e.tagIds()) uses[id]++;
+        for (int id = 0; id < uses.length; id++) if (uses[id] > 0) a.tagUses.merge(tags.name(id), (long) uses[id], Long::sum);
+        return a;
+    }
+
+    public void generateReport() { generateReport(System.out); }
+    public synchronized void generateReport(PrintStream out) { viewAll(out); generateMoodStatistics(out); }
+
+    // Entries carrying both tags
+    public synchronized int tagCooccurrence(String a, String b) {
+        int x = tags.idOf(a), y = tags.idOf(b);
+        return x < 0 || y < 0 ? 0 : pairs.count(x, y);
+    }
+
+    // Visits each pair of tags used together, with the number of entries carrying both
+    public synchronized void forEachTagPair(TagPairs.Visitor v) { pairs.forEach(v); }
+    // Name of a tag id handed to the visitor
+    public synchronized String tagName(int id) { return tags.name(id); }
+
+    // The limit pairs of tags used together on the most entries, most first
+    public synchronized void printTagPairs(PrintStream out, int limit) {
+        Comparator<int[]> order = Comparator.<int[]>comparingInt(p -> p[2]).thenComparingInt(p -> -p[0]).thenComparingInt(p -> -p[1]);
+        PriorityQueue<int[]> top = new PriorityQueue<>(order);
+        pairs.forEach((a, b, n) -> {
+            top.add(new int[]{a, b, n});
+            if (top.size() > limit) top.poll();
+        });
+        if (top.isEmpty()) { out.println("No tags used together yet."); return; }
+        List<int[]> ranked = new ArrayList<>(top);
+        ranked.sort(order.reversed());
+        for (int[] p : ranked) out.println(tags.name(p[0]) + " + " + tags.name(p[1]) + ": " + p[2] + (p[2] == 1 ? " entry" : " entries"));
+    }
+
+    // In log mode a save only syncs the pending records; the full rewrite runs as compaction
+    // once the log has grown well past the live entries. It runs here, under the lock: a text
+    // journal has no next segment to take appends while it is written, so only binary journals
+    // compact in the background.
+    public synchronized void saveToFile(String filename) throws IOException {
+        checkWritable();
+        if (binaryGeneration >= 0) { saveBinary(filename); return; }
+        long t0 = System.nanoTime();
+        boolean logged = log != null && log.getFilename().equals(filename);
+        if (logged && !log.isFailed() && !log.needsCompaction(entries.size())) log.sync();
+        else {
+            FsyncPolicy policy = logged ? log.getPolicy() : null;
+            if (logged) closeLog();
+            rewrite(filename);
+            if (logged) log = new JournalLog(filename, policy, loadedRecords, fileCodes, crypto);
         }
-        Map<Mood, Integer> overallMap = new HashMap<>();
-        for(JournalEntry e:entries) overallMap.put(e.getMood(), overallMap.getOrDefault(e.getMood(),0)+1);
-        Mood overallCommon=null; int overallMax=0;
-        System.out.println("--- Overall Mood Stats ---");
-        for(Mood m: overallMap.keySet()){
-            int count=overallMap.get(m); double percent=(count*100.0)/entries.size();
-            System.out.printf("%s: %d (%.1f%%)\n", m,count,percent);
-            if(count>overallMax){ overallMax=count; overallCommon=m; }
+        saveSidecars(filename);
+        Metrics.SAVE.stop(t0);
+    }
+
+    private File[] journalFiles(String filename) {
+        List<File> files = new ArrayList<>(List.of(new File(filename)));
+        if (binaryGeneration >= 0) for (int g = binaryGeneration; g <= segmentGen; g++) files.addAll(MappedJournal.segments(filename, g));
+        return files.toArray(new File[0]);
+    }
+
+    // Stamped with the journal as it is on disk now, so call only once the log is synced.
+    // The note index is saved only once a search has built it.
+    private void saveSidecars(String filename) {
+        long[] stamp = JournalSidecar.stamp(journalFiles(filename));
+        try {
+            JournalSidecar.write(JournalSidecar.fileFor(filename, JournalSidecar.STATS), stamp, crypto, stats::write);
+            if (notes.isBuilt()) JournalSidecar.write(JournalSidecar.fileFor(filename, JournalSidecar.NOTES), stamp, crypto, notes::write);
         }
-        System.out.println("Overall most common mood: "+overallCommon);
+        catch (IOException e) { System.out.println("Could not save statistics: " + e.getMessage()); }
     }
 
-    public void generateReport() { viewAll(); generateMoodStatistics(); }
+    // Writes every entry as an add record to a temp file and renames it over filename
+    private void rewrite(String filename) throws IOException {
+        FileTagCodes codes = new FileTagCodes(tags);
+        long records = 0;
+        Path target = Paths.get(filename).toAbsolutePath();
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        try(FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)){
+            OutputStream out;
+            EncryptedOutputStream encrypted = null;
+            if (crypto != null) {
+                crypto.writeHeader(ch);
+                out = encrypted = new EncryptedOutputStream(ch, crypto, JournalCrypto.HEADER_SIZE, 0);
+            } else out = java.nio.channels.Channels.newOutputStream(ch);
+            BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16);
+            for(JournalEntry e: entries) {
+                for (String record : JournalLog.entryRecords(e, codes)) {
+                    bw.write(crypto != null ? record : JournalLog.encode(record));
+                    bw.write('\n');
+                    records++;
+                }
+            }
+            bw.flush();
+            if (encrypted != null) encrypted.sealPending();
+            ch.force(true);
+            Metrics.BYTES_WRITTEN.add(ch.size());
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        loadedRecords = records;
+        fileCodes = codes;
+    }
 
-    // ✅ FIXED: Always overwrite full details (proper saving)
-    public void saveToFile(String filename) throws IOException {
-        try(BufferedWriter bw = new BufferedWriter(new FileWriter(filename,false))){
-            for(JournalEntry e: entries) bw.write(SimpleCipher.encrypt(e.serialize())+"\n");
+    // With a segment log a save only syncs it; snapshots are the compactor's job. Otherwise the
+    // snapshot is written here. Either way it bumps the generation, so a crash between the
+    // rename and the segment cleanup leaves old segments behind rather than replaying them twice.
+    public synchronized void saveBinary(String filename) throws IOException {
+        checkWritable();
+        awaitCompaction(); // its cleanup would invalidate the sidecar stamp
+        long t0 = System.nanoTime();
+        if (segmentLog && filename.equals(binaryFile) && !log.isFailed()) log.sync();
+        else {
+            boolean same = filename.equals(binaryFile);
+            // a failed segment log is replaced by a snapshot of the entries and a fresh segment
+            FsyncPolicy reopen = segmentLog && same ? log.getPolicy() : null;
+            if (reopen != null) closeLog();
+            int generation = same ? segmentGen + 1 : 0;
+            MappedJournal.write(entries, tags, filename, generation);
+            if (same) for (int g = binaryGeneration; g < generation; g++) MappedJournal.deleteSegments(filename, g);
+            binaryFile = filename;
+            binaryGeneration = segmentGen = generation;
+            segmentSeq = 0;
+            sealedRecords = loadedRecords = 0;
+            snapshotEntries = entries.size();
+            fileCodes = new FileTagCodes(tags);
+            if (reopen != null) openLog(filename, reopen);
         }
+        saveSidecars(filename);
+        Metrics.SAVE.stop(t0);
     }
 
-    public void loadFromFile(String filename) {
+    // Replays the journal: old unmarked lines and '#' log records, in file order.
+    // Binary journals map the snapshot lazily and replay the segments of its generation and of
+    // any later one a compaction had started, in order, on top.
+    // Unreadable lines are skipped and reported; only an I/O failure discards the load.
+    public synchronized void loadFromFile(String filename) {
+        awaitCompaction();
         File f = new File(filename);
         if(!f.exists()) return;
-        try(BufferedReader br = new BufferedReader(new FileReader(f))){
-            String line;
-            while((line=br.readLine())!=null){
-                if(line.trim().isEmpty()) continue;
-                JournalEntry e = JournalEntry.deserialize(line);
-                if(e!=null) entries.add(e);
-            }
-        } catch(Exception e){ System.out.println("Error loading journal."); entries.clear(); }
+        long t0 = System.nanoTime();
+        try {
+            if (MappedJournal.isBinary(f)) {
+                MappedJournal snapshot = MappedJournal.open(f, tags);
+                entries = new LazyEntryList(snapshot);
+                binaryFile = filename;
+                binaryGeneration = segmentGen = snapshot.getGeneration();
+                snapshotEntries = snapshot.size();
+                // segments the snapshot covers: a compaction renamed it but did not clean up
+                for (int g = binaryGeneration - 1; g >= 0 && !MappedJournal.segments(filename, g).isEmpty(); g--) MappedJournal.deleteSegments(filename, g);
+                for (int g = binaryGeneration; ; g++) {
+                    List<File> segs = MappedJournal.segments(filename, g);
+                    if (segs.isEmpty()) break;
+                    for (int seq = 0; seq < segs.size(); seq++) {
+                        sealedRecords += loadedRecords;
+                        loadedRecords = 0;
+                        replayText(segs.get(seq));
+                        segmentGen = g;
+                        segmentSeq = seq;
+                    }
+                }
+            } else if (JournalCrypto.isEncrypted(f)) {
+                try (EncryptedJournalFile ef = EncryptedJournalFile.open(f, password)) {
+                    crypto = ef.crypto;
+                    report(ParallelJournalLoader.load(ef, entries, tags), f);
+                    if (ef.hasTornTail()) System.out.println("Ignored an incomplete last block in " + f.getName() + ".");
+                }
+            } else replayText(f);
+        } catch(Exception e){
+            System.out.println("Error loading journal" + (e.getMessage() != null ? ": " + e.getMessage() : "."));
+            entries.clear();
+            loadFailed = true;
+        }
+        assignIds();
+        long bytes = 0;
+        for (File x : journalFiles(filename)) bytes += x.length();
+        Metrics.BYTES_READ.add(bytes);
+        long[] stamp = JournalSidecar.stamp(journalFiles(filename));
+        statsRestored = !loadFailed && JournalSidecar.read(JournalSidecar.fileFor(filename, JournalSidecar.STATS), stamp, crypto, stats::read);
+        for (JournalListener l : listeners) if (!(statsRestored && l == stats)) l.loaded(entries);
+        if (!loadFailed) JournalSidecar.read(JournalSidecar.fileFor(filename, JournalSidecar.NOTES), stamp, crypto, notes::read);
+        Metrics.LOAD.stop(t0, bytes);
+    }
+
+    public synchronized boolean isStatsRestored() { return statsRestored; }
+
+    private void replayText(File f) throws IOException { report(ParallelJournalLoader.load(f, entries, tags), f); }
+
+    private void report(ParallelJournalLoader.LoadResult r, File f) {
+        loadedRecords += r.records;
+        fileCodes = r.codes;
+        if (r.badLines > 0) {
+            System.out.println("Skipped " + r.badLines + " unreadable line(s) in " + f.getName() + ":");
+            for (int i = 0; i < Math.min(5, r.errors.size()); i++) System.out.println("  " + r.errors.get(i));
+        }
     }
 
-    public List<JournalEntry> getPendingFeedbacks() {
-        List<JournalEntry> pending = new ArrayList<>();
-        for(JournalEntry e:entries) if(e.needsFeedback()) pending.add(e);
-        return pending;
+    // Oldest first; O(pending log n) from the pending queue, not a journal scan
+    public synchronized List<JournalEntry> getPendingFeedbacks() {
+        long[] ids = pending.ids();
+        List<JournalEntry> found = new ArrayList<>(ids.length);
+        for (long id : ids) found.add(entries.get(positionOf(id)));
+        return found;
     }
+
+    public synchronized boolean isFeedbackExpired(JournalEntry e) { return pending.isExpired(e.getId()); }
+
+    // Reminders and expiries for the feedback windows, fired on the timer thread
+    public synchronized void setFeedbackAlarm(PendingFeedback.Alarm alarm) { pending.attach(alarm); }
 }
 
 // ================= Mood Analyzer =================
+// Aho-Corasick automaton over a keyword -> Mood dictionary. Text is lower-cased char by char
+// while walking the automaton, so a classification is one pass with no allocation. Each hit
+// adds its keyword weight to its mood; the highest score wins, ties go to the mood listed
+// first in the dictionary, and no hit at all gives NEUTRAL.
+class KeywordMatcher {
+    private static final Mood[] MOODS = Mood.values();
+    private final int[] asciiClass = new int[128];
+    private final char[] otherChars;   // sorted non-ASCII keyword chars
+    private final int[] otherClass;
+    private final int classes;
+    private final int[] delta;         // state * classes + charClass -> next state
+    private final int[][] outputs;     // keyword ids ending in each state, failure chain included
+    private final int[] kwMood, kwWeight, kwLength;
+    private final int[] priority;      // by Mood ordinal; lower wins ties
+    private final boolean wordBoundaries;
+    private final ThreadLocal<int[]> scratch = ThreadLocal.withInitial(() -> new int[MOODS.length]);
+
+    static class Builder {
+        private final List<String> words = new ArrayList<>();
+        private final List<Mood> moods = new ArrayList<>();
+        private final List<Integer> weights = new ArrayList<>();
+        private boolean wordBoundaries;
+
+        Builder add(String keyword, Mood mood, int weight) {
+            if (keyword.isEmpty()) throw new IllegalArgumentException("Empty keyword");
+            words.add(keyword.toLowerCase(Locale.ROOT)); moods.add(mood); weights.add(weight);
+            return this;
+        }
+        Builder add(String keyword, Mood mood) { return add(keyword, mood, 1); }
+        // Only match keywords that are not part of a longer word ("mad" no longer hits "made")
+        Builder wordBoundaries(boolean on) { this.wordBoundaries = on; return this; }
+        KeywordMatcher build() { return new KeywordMatcher(this); }
+    }
+
+    // One "keyword=MOOD" or "keyword=MOOD:weight" per line; '#' starts a comment
+    static Builder fromFile(String filename) throws IOException {
+        Builder b = new Builder();
+        for (String line : Files.readAllLines(Paths.get(filename), StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            String[] kv = line.split("=", 2);
+            if (kv.length < 2) throw new IOException("Bad dictionary line: " + line);
+            String[] mw = kv[1].trim().split(":", 2);
+            b.add(kv[0].trim(), Mood.valueOf(mw[0].trim().toUpperCase(Locale.ROOT)), mw.length > 1 ? Integer.parseInt(mw[1].trim()) : 1);
+        }
+        return b;
+    }
+
+    private KeywordMatcher(Builder b) {
+        int n = b.words.size();
+        kwMood = new int[n]; kwWeight = new int[n]; kwLength = new int[n];
+        priority = new int[MOODS.length];
+        Arrays.fill(priority, Integer.MAX_VALUE);
+        wordBoundaries = b.wordBoundaries;
+
+        TreeSet<Character> other = new TreeSet<>();
+        int next = 1; // class 0 is "not a keyword char"
+        for (String w : b.words) for (char c : w.toCharArray()) {
+            if (c < 128) { if (asciiClass[c] == 0) asciiClass[c] = next++; }
+            else other.add(c);
+        }
+        otherChars = new char[other.size()];
+        otherClass = new int[other.size()];
+        int k = 0;
+        for (char c : other) { otherChars[k] = c; otherClass[k++] = next++; }
+        classes = next;
+
+        // Trie
+        List<int[]> trie = new ArrayList<>();
+        List<List<Integer>> out = new ArrayList<>();
+        trie.add(new int[classes]); out.add(new ArrayList<>());
+        for (int w = 0; w < n; w++) {
+            String word = b.words.get(w);
+            int state = 0;
+            for (int i = 0; i < word.length(); i++) {
+                int c = classOf(word.charAt(i));
+                if (trie.get(state)[c] == 0) {
+                    trie.get(state)[c] = trie.size();
+                    trie.add(new int[classes]); out.add(new ArrayList<>());
+                }
+                state = trie.get(state)[c];
+            }
+            out.get(state).add(w);
+            kwMood[w] = b.moods.get(w).ordinal();
+            kwWeight[w] = b.weights.get(w);
+            kwLength[w] = word.length();
+            priority[kwMood[w]] = Math.min(priority[kwMood[w]], w);
+        }
+
+        // Breadth-first failure links, folded into a full transition table
+        int states = trie.size();
+        delta = new int[states * classes];
+        int[] fail = new int[states];
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int c = 1; c < classes; c++) {
+            int s = trie.get(0)[c];
+            delta[c] = s;
+            if (s != 0) queue.add(s);
+        }
+        while (!queue.isEmpty()) {
+            int s = queue.poll();
+            out.get(s).addAll(out.get(fail[s]));
+            for (int c = 1; c < classes; c++) {
+                int t = trie.get(s)[c];
+                if (t != 0) {
+                    fail[t] = delta[fail[s] * classes + c];
+                    delta[s * classes + c] = t;
+                    queue.add(t);
+                } else delta[s * classes + c] = delta[fail[s] * classes + c];
+            }
+        }
+        outputs = new int[states][];
+        for (int s = 0; s < states; s++) outputs[s] = out.get(s).stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private int classOf(char c) {
+        if (c < 128) return asciiClass[c];
+        int i = Arrays.binarySearch(otherChars, c);
+        return i >= 0 ? otherClass[i] : 0;
+    }
+
+    Mood classify(String text) {
+        int[] scores = scratch.get();
+        score(text, scores);
+        int best = -1;
+        for (int m = 0; m < scores.length; m++)
+            if (scores[m] > 0 && (best < 0 || scores[m] > scores[best] || (scores[m] == scores[best] && priority[m] < priority[best]))) best = m;
+        return best < 0 ? Mood.NEUTRAL : MOODS[best];
+    }
+
+    // Summed keyword weights by Mood ordinal; classify picks the highest, NEUTRAL when all are 0
+    int[] scores(String text) {
+        int[] scores = new int[MOODS.length];
+        score(text, scores);
+        return scores;
+    }
+
+    private void score(String text, int[] scores) {
+        Arrays.fill(scores, 0);
+        int state = 0, len = text.length();
+        for (int i = 0; i < len; i++) {
+            state = delta[state * classes + classOf(Character.toLowerCase(text.charAt(i)))];
+            for (int w : outputs[state]) {
+                if (wordBoundaries && !(isBoundary(text, i - kwLength[w]) && isBoundary(text, i + 1))) continue;
+                scores[kwMood[w]] += kwWeight[w];
+            }
+        }
+    }
+
+    private static boolean isBoundary(String text, int i) { return i < 0 || i >= text.length() || !Character.isLetterOrDigit(text.charAt(i)); }
+}
+
 class MoodAnalyzer {
+    // -Dmood.dictionary=<file> replaces the built-in keywords, -Dmood.wordBoundaries=true enables whole-word matching
+    private static volatile KeywordMatcher matcher = defaultMatcher();
+
+    private static KeywordMatcher defaultMatcher() {
+        KeywordMatcher.Builder b;
+        String dict = System.getProperty("mood.dictionary");
+        if (dict != null) {
+            try { b = KeywordMatcher.fromFile(dict); }
+            catch (Exception e) { System.out.println("Error reading mood dictionary, using built-in keywords."); b = builtIn(); }
+        } else b = builtIn();
+        return b.wordBoundaries(Boolean.getBoolean("mood.wordBoundaries")).build();
+    }
+
+    static KeywordMatcher.Builder builtIn() {
+        return new KeywordMatcher.Builder()
+            .add("happy", Mood.HAPPY).add("excited", Mood.HAPPY).add("joyful", Mood.HAPPY)
+            .add("sad", Mood.SAD).add("lonely", Mood.SAD).add("upset", Mood.SAD)
+            .add("angry", Mood.ANGRY).add("frustrated", Mood.ANGRY).add("mad", Mood.ANGRY)
+            .add("tired", Mood.TIRED).add("exhausted", Mood.TIRED).add("sleepy", Mood.TIRED)
+            .add("stressed", Mood.STRESSED).add("worried", Mood.STRESSED).add("anxious", Mood.STRESSED)
+            .add("hungry", Mood.HUNGRY).add("starving", Mood.HUNGRY)
+            .add("calm", Mood.CALM).add("relaxed", Mood.CALM)
+            .add("confused", Mood.CONFUSED).add("uncertain", Mood.CONFUSED);
+    }
+
+    static void setMatcher(KeywordMatcher m) { matcher = m; }
+
     public static Mood analyzeMood(String text) {
-        text=text.toLowerCase();
-        if(text.contains("happy")||text.contains("excited")||text.contains("joyful")) return Mood.HAPPY;
-        if(text.contains("sad")||text.contains("lonely")||text.contains("upset")) return Mood.SAD;
-        if(text.contains("angry")||text.contains("frustrated")||text.contains("mad")) return Mood.ANGRY;
-        if(text.contains("tired")||text.contains("exhausted")||text.contains("sleepy")) return Mood.TIRED;
-        if(text.contains("stressed")||text.contains("worried")||text.contains("anxious")) return Mood.STRESSED;
-        if(text.contains("hungry")||text.contains("starving")) return Mood.HUNGRY;
-        if(text.contains("calm")||text.contains("relaxed")) return Mood.CALM;
-        if(text.contains("confused")||text.contains("uncertain")) return Mood.CONFUSED;
-        return Mood.NEUTRAL;
+        long t0 = System.nanoTime();
+        Mood m = matcher.classify(text);
+        Metrics.ANALYZE_MOOD.stop(t0);
+        return m;
     }
+
+    // Keyword score per mood, by Mood ordinal, for callers that want more than the winner
+    public static int[] moodScores(String text) { return matcher.scores(text); }
+
+    // Bulk re-classification of historical notes, spread over the common fork-join pool
+    public static Mood[] analyzeAll(List<String> texts) {
+        KeywordMatcher m = matcher;
+        Mood[] result = new Mood[texts.size()];
+        IntStream.range(0, result.length).parallel()
+            .forEach(i -> result[i] = texts.get(i) == null ? Mood.NEUTRAL : m.classify(texts.get(i)));
+        return result;
+    }
+
     public static String getSuggestion(Mood mood) {
         switch(mood){
             case HAPPY: return "Share your joy with others.";
@@ -235,6 +4537,455 @@ class User {
     public String getUsername(){ return username;}
 }
 
+// ================= User Store =================
+// Credentials file with one "username:secret" line per change; the last line for a user wins.
+// Secrets are "pbkdf2$iterations$salt$hash" (Base64); old XOR secrets still verify and are
+// rehashed on the next successful login. The whole file is indexed once per process and
+// later appends, from this or another process, are picked up by reading only the new tail.
+// Writers serialize on an OS lock of "<file>.lock" and compaction drops superseded lines.
+class UserStore {
+    static final String PBKDF2 = "pbkdf2$";
+    static final int SALT_BYTES = 16, HASH_BITS = 256;
+    // -Duser.hashIterations: PBKDF2-HMAC-SHA256 cost, tune against the login latency budget
+    static final int ITERATIONS = Integer.getInteger("user.hashIterations", 600_000);
+    private static final Map<Path, UserStore> OPEN = new ConcurrentHashMap<>();
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final byte[] UNKNOWN_USER_SALT = new byte[SALT_BYTES];
+
+    private final Path file, lockFile;
+    private final Map<String, String> index = new ConcurrentHashMap<>();
+    private long readOffset, lines;
+    private Object readIdentity; // of the file readOffset refers to; compaction replaces the file
+
+    private UserStore(Path file) {
+        this.file = file;
+        this.lockFile = file.resolveSibling(file.getFileName() + ".lock");
+    }
+
+    static UserStore open(String filename) {
+        return OPEN.computeIfAbsent(Paths.get(filename).toAbsolutePath(), UserStore::new);
+    }
+
+    boolean exists(String username) throws IOException { refresh(); return index.containsKey(username); }
+
+    Set<String> usernames() throws IOException { refresh(); return Collections.unmodifiableSet(index.keySet()); }
+
+    boolean verify(String username, String password) throws IOException {
+        refresh();
+        String secret = index.get(username);
+        if (secret == null) {
+            // Hashed all the same, so the reply time does not tell which usernames exist
+            pbkdf2(password, UNKNOWN_USER_SALT, ITERATIONS);
+            return false;
+        }
+        boolean ok;
+        int iterations = ITERATIONS;
+        if (secret.startsWith(PBKDF2)) {
+            // A truncated or hand-edited line fails this login, not the session asking
+            String[] p = secret.split("\\$");
+            if (p.length != 4) return false;
+            try {
+                iterations = Integer.parseInt(p[1]);
+                byte[] salt = Base64.getDecoder().decode(p[2]);
+                ok = MessageDigest.isEqual(pbkdf2(password, salt, iterations), Base64.getDecoder().decode(p[3]));
+            } catch (IllegalArgumentException e) { return false; } // bad number, Base64, salt or count
+        } else {
+            ok = MessageDigest.isEqual(SimpleCipher.decrypt(secret).getBytes(StandardCharsets.UTF_8),
+                                       password.getBytes(StandardCharsets.UTF_8));
+            iterations = 0;
+        }
+        if (ok && iterations < ITERATIONS) append(username, hash(password, ITERATIONS));
+        return ok;
+    }
+
+    // False if the user already exists, possibly just created by another process
+    @SuppressWarnings("try") // the lock is held for the block, not used in it
+    synchronized boolean create(String username, String password) throws IOException {
+        if (username.isEmpty() || username.contains(":") || username.contains("\n"))
+            throw new IllegalArgumentException("Username must not be empty or contain ':'");
+        try (FileChannel lc = lockChannel(); FileLock lock = lc.lock()) {
+            refresh();
+            if (index.containsKey(username)) return false;
+            write(username, hash(password, ITERATIONS));
+        }
+        return true;
+    }
+
+    @SuppressWarnings("try")
+    private synchronized void append(String username, String secret) throws IOException {
+        try (FileChannel lc = lockChannel(); FileLock lock = lc.lock()) { write(username, secret); }
+    }
+
+    // Caller holds the file lock
+    private void write(String username, String secret) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer b = ByteBuffer.wrap((username + ":" + secret + "\n").getBytes(StandardCharsets.UTF_8));
+            while (b.hasRemaining()) ch.write(b);
+            ch.force(false);
+        }
+        refresh();
+        if (lines > 2L * index.size() + 64) compact();
+    }
+
+    // Caller holds the file lock
+    private void compact() throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter bw = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, String> e : index.entrySet()) { bw.write(e.getKey() + ":" + e.getValue()); bw.newLine(); }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        readOffset = 0;
+        lines = 0;
+        refresh();
+    }
+
+    private FileChannel lockChannel() throws IOException {
+        return FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+
+    // Reads complete lines appended since the last call; starts over if the file was compacted.
+    // A compacted file is a new file, recognized by its identity rather than its size, which
+    // may well exceed the old offset. The identity is read before and after opening, so the
+    // channel is known to be on the file it names.
+    private synchronized void refresh() throws IOException {
+        for (;;) {
+            if (!Files.exists(file)) return;
+            try {
+                Object identity = identity();
+                try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+                    if (!identity.equals(identity())) continue; // replaced while opening
+                    readTail(ch, identity);
+                    return;
+                }
+            } catch (NoSuchFileException e) { } // replaced or removed meanwhile
+        }
+    }
+
+    private void readTail(FileChannel ch, Object identity) throws IOException {
+        long size = ch.size();
+        if (!identity.equals(readIdentity) || size < readOffset) { index.clear(); readOffset = 0; lines = 0; readIdentity = identity; }
+        if (size == readOffset) return;
+        ByteBuffer b = ByteBuffer.allocate((int) Math.min(Integer.MAX_VALUE - 8, size - readOffset));
+        while (b.hasRemaining() && ch.read(b, readOffset + b.position()) > 0) { }
+        int end = b.position();
+        while (end > 0 && b.get(end - 1) != '\n') end--;
+        String text = new String(b.array(), 0, end, StandardCharsets.UTF_8);
+        for (String line : text.split("\n")) {
+            int colon = line.indexOf(':');
+            if (colon <= 0) continue;
+            // XOR secrets map digits and punctuation to control characters, so only the
+            // line ending may be stripped
+            int stop = line.endsWith("\r") ? line.length() - 1 : line.length();
+            index.put(line.substring(0, colon), line.substring(colon + 1, stop));
+            lines++;
+        }
+        readOffset += end;
+    }
+
+    // Inode where the file system has one, else the creation time: compaction renames a new file over it
+    private Object identity() throws IOException {
+        BasicFileAttributes a = Files.readAttributes(file, BasicFileAttributes.class);
+        return a.fileKey() != null ? a.fileKey() : a.creationTime();
+    }
+
+    static String hash(String password, int iterations) {
+        byte[] salt = new byte[SALT_BYTES];
+        RANDOM.nextBytes(salt);
+        Base64.Encoder b64 = Base64.getEncoder();
+        return PBKDF2 + iterations + "$" + b64.encodeToString(salt) + "$" + b64.encodeToString(pbkdf2(password, salt, iterations));
+    }
+
+    static byte[] pbkdf2(String password, byte[] salt, int iterations) {
+        KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try { return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded(); }
+        catch (GeneralSecurityException e) { throw new IllegalStateException("PBKDF2WithHmacSHA256 unavailable", e); }
+    }
+
+    // Iteration count whose hash takes about targetMillis on this machine
+    static int calibrate(long targetMillis) {
+        int probe = 20_000;
+        long t = System.nanoTime();
+        pbkdf2("calibrate", new byte[SALT_BYTES], probe);
+        long ms = Math.max(1, (System.nanoTime() - t) / 1_000_000);
+        return (int) Math.max(probe, probe * targetMillis / ms);
+    }
+}
+
+// ================= Journal Server =================
+// Loaded managers keyed by username: at most maxLoaded stay in memory (least recently used
+// go first) and any left unused for idleMillis are saved and dropped. Managers in use by a
+// session are never evicted. Only the map bookkeeping runs under the cache lock; loading and
+// saving happen outside it so one user's I/O does not hold up the others. Managers log with
+// GROUP, so an append is on disk within the group commit interval even if nobody saves.
+class ManagerCache implements Closeable {
+    static class Handle {
+        final String username;
+        final String journalFile;
+        JournalManager manager;
+        int refs;
+        long lastUsed;
+        boolean closing;
+        Handle(String username, String journalFile) { this.username = username; this.journalFile = journalFile; }
+    }
+
+    private final File dir;
+    private final int maxLoaded;
+    private final long idleMillis;
+    private final LinkedHashMap<String, Handle> handles = new LinkedHashMap<>(16, 0.75f, true);
+    private final ScheduledExecutorService sweeper;
+
+    ManagerCache(File dir, int maxLoaded, long idleMillis) {
+        this.dir = dir;
+        this.maxLoaded = maxLoaded;
+        this.idleMillis = idleMillis;
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "journal-evictor");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1000, idleMillis / 4);
+        sweeper.scheduleAtFixedRate(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    Handle acquire(String username, String password) throws IOException {
+        String journalFile = JournalManager.journalOf(dir, username).getPath();
+        Handle h;
+        synchronized (this) {
+            while ((h = handles.get(username)) != null && h.closing) {
+                try { wait(); } catch (InterruptedException e) { Thread.currentThread().interrupt(); throw new InterruptedIOException(); }
+            }
+            if (h == null) {
+                h = new Handle(username, journalFile);
+                handles.put(username, h);
+            }
+            h.refs++;
+        }
+        synchronized (h) {
+            if (h.manager == null) {
+                JournalManager m = new JournalManager();
+                m.setPassword(password);
+                m.loadFromFile(h.journalFile);
+                try { m.openLog(h.journalFile, FsyncPolicy.GROUP); }
+                catch (IOException e) { release(h); throw e; }
+                h.manager = m;
+            }
+        }
+        return h;
+    }
+
+    void release(Handle h) {
+        List<Handle> victims = new ArrayList<>();
+        synchronized (this) {
+            h.refs--;
+            h.lastUsed = System.currentTimeMillis();
+            int loaded = handles.size();
+            for (Handle c : handles.values()) {
+                if (loaded <= maxLoaded) break;
+                if (c.refs == 0 && !c.closing) { c.closing = true; victims.add(c); loaded--; }
+            }
+        }
+        close(victims);
+    }
+
+    private void evictIdle() {
+        List<Handle> victims = new ArrayList<>();
+        long cutoff = System.currentTimeMillis() - idleMillis;
+        synchronized (this) {
+            for (Handle c : handles.values())
+                if (c.refs == 0 && !c.closing && c.lastUsed < cutoff) { c.closing = true; victims.add(c); }
+        }
+        close(victims);
+    }
+
+    private void close(List<Handle> victims) {
+        for (Handle h : victims) {
+            synchronized (h) {
+                try {
+                    if (h.manager != null) { h.manager.saveToFile(h.journalFile); h.manager.closeLog(); }
+                } catch (IOException e) { System.out.println("Error saving journal of " + h.username + ": " + e.getMessage()); }
+                h.manager = null;
+            }
+            synchronized (this) { handles.remove(h.username, h); notifyAll(); }
+        }
+    }
+
+    synchronized int loadedCount() { return handles.size(); }
+
+    // A manager still in use by a session is saved under its own lock but stays loaded, so the
+    // session never finds it gone
+    @Override public void close() {
+        sweeper.shutdownNow();
+        List<Handle> victims = new ArrayList<>(), inUse = new ArrayList<>();
+        synchronized (this) {
+            for (Handle h : handles.values()) {
+                if (h.closing) continue;
+                if (h.refs > 0) inUse.add(h);
+                else { h.closing = true; victims.add(h); }
+            }
+        }
+        close(victims);
+        for (Handle h : inUse) {
+            synchronized (h) {
+                try { if (h.manager != null) h.manager.saveToFile(h.journalFile); }
+                catch (IOException e) { System.out.println("Error saving journal of " + h.username + ": " + e.getMessage()); }
+            }
+        }
+    }
+}
+
+// Line protocol on a loopback socket, one session per connection. Each reply ends with a "." line.
+//   LOGIN <user> <password> | ADD <how you feel> [| tag tag ...] | FEEDBACK <n> <text> | VIEW
+//   STATS | TRENDS | FILTER <mood> | QUERY [mood=M] [tag=T ...] [days=N] | PAIRS [<tag> <tag>]
+//   DELETE <n> | SAVE | METRICS | QUIT
+// Sessions run on virtual threads when the JVM has them (21+), otherwise on a cached pool.
+// A connection is closed after MAX_LOGIN_FAILURES failed logins, and at most one password
+// check per CPU runs at a time, so LOGIN cannot be used to burn the server's CPU on PBKDF2.
+class JournalServer implements Closeable {
+    static final int MAX_LOGIN_FAILURES = 3;
+    private final ServerSocket socket;
+    private final ManagerCache cache;
+    private final UserStore users;
+    private final ExecutorService sessions = newSessionExecutor();
+    private final Set<Socket> clients = ConcurrentHashMap.newKeySet();
+    private final Semaphore passwordChecks = new Semaphore(Runtime.getRuntime().availableProcessors());
+
+    JournalServer(int port, File dir, String userFile, int maxLoaded, long idleMillis) throws IOException {
+        this.socket = new ServerSocket(port, 128, InetAddress.getLoopbackAddress());
+        this.cache = new ManagerCache(dir, maxLoaded, idleMillis);
+        this.users = UserStore.open(userFile);
+    }
+
+    static ExecutorService newSessionExecutor() {
+        try { return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null); }
+        catch (ReflectiveOperationException e) { return Executors.newCachedThreadPool(); }
+    }
+
+    int getPort() { return socket.getLocalPort(); }
+
+    void serve() throws IOException {
+        while (!socket.isClosed()) {
+            Socket client;
+            try { client = socket.accept(); }
+            catch (SocketException e) { break; } // closed
+            clients.add(client);
+            sessions.execute(() -> session(client));
+        }
+    }
+
+    private void session(Socket client) {
+        ManagerCache.Handle h = null;
+        int failures = 0;
+        try (Socket c = client;
+             BufferedReader in = new BufferedReader(new InputStreamReader(c.getInputStream(), StandardCharsets.UTF_8));
+             PrintStream out = new PrintStream(new BufferedOutputStream(c.getOutputStream()), false, "UTF-8")) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] cmd = line.trim().split(" ", 2);
+                String verb = cmd[0].toUpperCase(Locale.ROOT), arg = cmd.length > 1 ? cmd[1].trim() : "";
+                if (verb.equals("QUIT")) { out.println("Bye."); out.println("."); out.flush(); break; }
+                if (verb.equals("LOGIN")) {
+                    String[] up = arg.split(" ", 2);
+                    if (h != null) out.println("ERR already logged in");
+                    else if (up.length == 2 && verify(up[0], up[1])) {
+                        try { h = cache.acquire(up[0], up[1]); out.println("OK"); }
+                        catch (IOException e) { out.println("ERR cannot open journal: " + e.getMessage()); }
+                    }
+                    else if (++failures < MAX_LOGIN_FAILURES) out.println("ERR login failed");
+                    else { out.println("ERR too many failed logins"); out.println("."); out.flush(); break; }
+                } else if (h == null) out.println("ERR login first");
+                else handle(h, verb, arg, out);
+                out.println(".");
+                out.flush();
+            }
+        } catch (IOException e) {
+            // client went away
+        } finally {
+            if (h != null) cache.release(h);
+            clients.remove(client);
+        }
+    }
+
+    private boolean verify(String username, String password) throws IOException {
+        try { passwordChecks.acquire(); }
+        catch (InterruptedException e) { Thread.currentThread().interrupt(); throw new InterruptedIOException(); }
+        try { return users.verify(username, password); }
+        finally { passwordChecks.release(); }
+    }
+
+    private static void handle(ManagerCache.Handle h, String verb, String arg, PrintStream out) throws IOException {
+        JournalManager m = h.manager;
+        try {
+            switch (verb) {
+                case "ADD": {
+                    String[] parts = arg.split("\\|", 2);
+                    Mood mood = MoodAnalyzer.analyzeMood(parts[0]);
+                    List<String> tags = parts.length < 2 ? new ArrayList<>() : Arrays.stream(parts[1].toLowerCase(Locale.ROOT).split(" "))
+                            .filter(t -> !t.isEmpty()).collect(Collectors.toList());
+                    m.addEntry(new JournalEntry(new Date(), null, mood, null, tags));
+                    out.println("Entry " + m.size() + " Mood: " + mood + " Suggestion: " + MoodAnalyzer.getSuggestion(mood));
+                    break;
+                }
+                case "FEEDBACK": {
+                    String[] parts = arg.split(" ", 2);
+                    if (parts.length < 2 || parts[1].trim().isEmpty()) { out.println("ERR usage: FEEDBACK <n> <text>"); break; }
+                    synchronized (m) { m.setFeedback(m.getEntry(Integer.parseInt(parts[0]) - 1), parts[1].trim(), new Date()); }
+                    out.println("OK");
+                    break;
+                }
+                case "VIEW": m.viewAll(out); break;
+                case "STATS": m.generateMoodStatistics(out); break;
+                case "FILTER": m.filterByMood(Mood.valueOf(arg.toUpperCase(Locale.ROOT)), out); break;
+                case "QUERY": {
+                    JournalQuery q = new JournalQuery();
+                    for (String c : arg.split(" ")) {
+                        String[] kv = c.split("=", 2);
+                        if (kv.length < 2) continue;
+                        if (kv[0].equals("mood")) q.mood(Mood.valueOf(kv[1].toUpperCase(Locale.ROOT)));
+                        else if (kv[0].equals("tag")) q.tag(kv[1]);
+                        else if (kv[0].equals("days")) q.lastDays(Integer.parseInt(kv[1]));
+                    }
+                    m.printEntries(m.query(q), out);
+                    break;
+                }
+                case "SEARCH": m.printEntries(m.search(arg, 20), out); break;
+                case "EXPORT": m.export(out, ExportFormat.valueOf(arg.isEmpty() ? "CSV" : arg.toUpperCase(Locale.ROOT))); break;
+                case "DELETE": m.deleteEntry(Integer.parseInt(arg) - 1); out.println("Deleted."); break;
+                case "SAVE": m.saveToFile(h.journalFile); out.println("OK"); break; // syncs the log, compacting when due
+                case "METRICS": out.print(Metrics.dump()); break;
+                case "TRENDS": m.printTrends(out); break;
+                case "PAIRS": {
+                    String[] t = arg.toLowerCase(Locale.ROOT).split(" +");
+                    if (arg.isEmpty()) m.printTagPairs(out, 10);
+                    else if (t.length == 2) {
+                        int n = m.tagCooccurrence(t[0], t[1]);
+                        out.println(n + (n == 1 ? " entry" : " entries") + " tagged " + t[0] + " and " + t[1]);
+                    } else out.println("ERR usage: PAIRS [<tag> <tag>]");
+                    break;
+                }
+                default: out.println("ERR unknown command " + verb);
+            }
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            out.println("ERR invalid entry number");
+        } catch (IllegalArgumentException e) {
+            out.println(verb.equals("EXPORT") ? "ERR formats: text, csv, jsonl" : "ERR invalid mood");
+        }
+    }
+
+    // Sessions get 10 s to finish; then their sockets are closed, which ends them and releases
+    // their managers before the cache saves everything
+    @Override public void close() throws IOException {
+        socket.close();
+        sessions.shutdown();
+        try {
+            if (!sessions.awaitTermination(10, TimeUnit.SECONDS)) {
+                for (Socket c : clients) { try { c.close(); } catch (IOException e) { } }
+                sessions.awaitTermination(10, TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+        cache.close();
+    }
+}
+
 // ================= Main =================
 public class MentalWellnessJournal3 {
     private static final String USER_FILE="jsample.txt";
@@ -250,30 +5001,18 @@ public class MentalWellnessJournal3 {
     // ✅ FIXED LOGIN BEHAVIOR
     private static User login(Scanner sc) throws IOException {
         System.out.print("Enter username: ");
-        String username=sc.nextLine().trim();
-        Map<String,String> map=new HashMap<>();
-        File f = new File(USER_FILE);
-
-        // Load all users
-        if(f.exists()){
-            try(BufferedReader br=new BufferedReader(new FileReader(f))){
-                String line;
-                while((line=br.readLine())!=null){
-                    String[] arr=line.split(":");
-                    if(arr.length==2) map.put(arr[0],arr[1]);
-                }
-            }
-        }
+        User user=new User(sc.nextLine());
+        String username=user.getUsername();
+        UserStore store=UserStore.open(USER_FILE);
 
-        User user=new User(username);
         // Existing user
-        if(map.containsKey(username)){
-            String pw=SimpleCipher.decrypt(map.get(username));
-            user.setPassword(pw);
+        if(store.exists(username)){
             int attempts=3;
             while(attempts>0){
                 System.out.print("Enter password: ");
-                if(user.authenticate(sc.nextLine())) { 
+                String pw=sc.nextLine();
+                if(store.verify(username,pw)) { 
+                    user.setPassword(pw);
                     System.out.println("Login successful.\n");
                     return user; 
                 } else { 
@@ -288,47 +5027,125 @@ public class MentalWellnessJournal3 {
         else {
             System.out.print("New user! Set password: ");
             String pw=sc.nextLine();
+            try{
+                if(!store.create(username,pw)){ System.out.println("User was just created elsewhere, please log in again."); return null; }
+            } catch(IllegalArgumentException e){ System.out.println("Invalid username: "+e.getMessage()); return null; }
             user.setPassword(pw);
-            try(BufferedWriter bw=new BufferedWriter(new FileWriter(f,true))){
-                bw.write(username+":"+SimpleCipher.encrypt(pw)); bw.newLine();
-            }
             System.out.println("✅ User created successfully.\n");
         }
         return user;
     }
 
+    // A mistyped -Djournal.fsync falls back to the default instead of failing at startup
+    static FsyncPolicy fsyncPolicy(String value, FsyncPolicy fallback){
+        if(value==null) return fallback;
+        try{ return FsyncPolicy.valueOf(value.trim().toUpperCase(Locale.ROOT)); }
+        catch(IllegalArgumentException e){
+            System.out.println("Unknown journal.fsync '"+value+"', using "+fallback+" (one of "+Arrays.toString(FsyncPolicy.values())+").");
+            return fallback;
+        }
+    }
+
+    // Asks for the feedback of every pending entry, oldest first; false if there was none
+    static boolean askPendingFeedback(Scanner sc, JournalManager manager) {
+        List<JournalEntry> pending = manager.getPendingFeedbacks();
+        if(pending.isEmpty()) return false;
+        System.out.println("\nYou have pending feedback entries!");
+        for(JournalEntry e:pending){
+            System.out.println(e.toString(0));
+            if(manager.isFeedbackExpired(e)) System.out.println("(The "+PendingFeedback.WINDOW_MILLIS/60_000+" minute feedback window has closed.)");
+            System.out.print("Please provide feedback for this entry: ");
+            String fb=sc.nextLine().trim();
+            while(fb.isEmpty()){
+                System.out.print("Feedback cannot be empty: ");
+                fb=sc.nextLine().trim();
+            }
+            System.out.print("Enter end time (yyyy-MM-dd HH:mm): ");
+            Date endTime=null;
+            while(endTime==null){
+                try{
+                    String s=sc.nextLine().trim();
+                    SimpleDateFormat sdf=new SimpleDateFormat("yyyy-MM-dd HH:mm");
+                    endTime=sdf.parse(s);
+                } catch(Exception ex){ System.out.print("Invalid. Enter again: "); }
+            }
+            manager.setFeedback(e,fb,endTime);
+        }
+        return true;
+    }
+
     public static void main(String[] args) throws Exception {
+        Metrics.register();
+        // --import <file or dir>...: migrates v1 journals in place, keeping each original as <file>.v1
+        if(args.length>0 && args[0].equals("--import")){
+            JournalImporter.importAll(Arrays.asList(args).subList(1,args.length),System.out);
+            return;
+        }
+        // --aggregate [days]: mood mix per day and top tags over every user's journal
+        if(args.length>0 && args[0].equals("--aggregate")){
+            int days=args.length>1?Integer.parseInt(args[1]):14;
+            AggregateJob.Result r=AggregateJob.run(USER_FILE,new File("."),
+                    Integer.getInteger("aggregate.threads",Runtime.getRuntime().availableProcessors()));
+            r.total.print(System.out,days,10);
+            if(!r.skipped.isEmpty()) System.out.println("\nSkipped "+r.skipped.size()+" journal(s): "+String.join("; ",r.skipped));
+            return;
+        }
+        // --serve [port]: multi-user service mode instead of the interactive menu
+        if(args.length>0 && args[0].equals("--serve")){
+            int port=args.length>1?Integer.parseInt(args[1]):7070;
+            JournalServer server=new JournalServer(port,new File("."),USER_FILE,
+                    Integer.getInteger("server.maxLoaded",1000),Long.getLong("server.idleMillis",600_000L));
+            Runtime.getRuntime().addShutdownHook(new Thread(()->{ try{ server.close(); } catch(IOException e){ } }));
+            System.out.println("Journal server listening on localhost:"+server.getPort());
+            server.serve();
+            return;
+        }
         Scanner sc=new Scanner(System.in);
         User user=login(sc);
         if(user==null){ sc.close(); return; }
 
-        String journalFile=user.getUsername()+"_journal.txt";
-        JournalManager manager=new JournalManager();
+        String journalFile=JournalManager.journalOf(new File("."),user.getUsername()).getName();
+        // Journals of the first version would not load; migrate them before anything else reads them
+        if(JournalImporter.detect(new File(journalFile))==JournalImporter.Format.V1){
+            ExecutorService pool=Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+            try{
+                JournalImporter.Result r=JournalImporter.migrate(new File(journalFile),pool);
+                System.out.println("Imported "+r.entries+" entries from your old journal (original kept as "+r.backup.getFileName()+").");
+            } catch(IOException e){ System.out.println("Could not import your old journal: "+e.getMessage()); sc.close(); return; }
+            finally{ pool.shutdown(); }
+        }
+        // -Djournal.format=binary converts the journal to a memory-mapped snapshot; once converted the .bin is the journal
+        if("binary".equalsIgnoreCase(System.getProperty("journal.format")) && journalFile.endsWith(".txt")){
+            String binFile=user.getUsername()+"_journal.bin";
+            try{
+                MappedJournal.convert(journalFile,binFile);
+                journalFile=binFile;
+            } catch(IOException e){ System.out.println("Staying on the text journal: "+e.getMessage()); }
+        }
+        // -Djournal.store=columnar keeps entries in primitive arrays for very large journals
+        JournalManager manager=new JournalManager("columnar".equalsIgnoreCase(System.getProperty("journal.store")));
+        manager.setPassword(user.getPassword());
         manager.loadFromFile(journalFile);
+        if(manager.isLoadFailed()){ System.out.println("Your journal was left untouched. Exiting."); sc.close(); return; }
+        // -Djournal.cipher=aes moves an XOR text journal to AES-GCM blocks keyed by the password
+        if("aes".equalsIgnoreCase(System.getProperty("journal.cipher")) && !manager.isEncrypted() && journalFile.endsWith(".txt")){
+            manager.encrypt(journalFile);
+            System.out.println("Journal is now encrypted with your password.");
+        }
+        // -Djournal.fsync=NEVER|ON_SAVE|EVERY_RECORD|GROUP; GROUP autosaves in the background
+        manager.openLog(journalFile, fsyncPolicy(System.getProperty("journal.fsync"), FsyncPolicy.GROUP));
+        Runtime.getRuntime().addShutdownHook(new Thread(GroupCommitter::syncAll, "journal-shutdown-sync"));
 
-        List<JournalEntry> pending = manager.getPendingFeedbacks();
-        if(!pending.isEmpty()){
-            System.out.println("\nYou have pending feedback entries!");
-            for(JournalEntry e:pending){
-                System.out.println(e.toString(0));
-                System.out.print("Please provide feedback for this entry: ");
-                String fb=sc.nextLine().trim();
-                while(fb.isEmpty()){
-                    System.out.print("Feedback cannot be empty: ");
-                    fb=sc.nextLine().trim();
-                }
-                System.out.print("Enter end time (yyyy-MM-dd HH:mm): ");
-                Date endTime=null;
-                while(endTime==null){
-                    try{
-                        String s=sc.nextLine().trim();
-                        SimpleDateFormat sdf=new SimpleDateFormat("yyyy-MM-dd HH:mm");
-                        endTime=sdf.parse(s);
-                    } catch(Exception ex){ System.out.print("Invalid. Enter again: "); }
-                }
-                e.setFeedback(fb,endTime);
+        askPendingFeedback(sc, manager);
+        SimpleDateFormat clock=new SimpleDateFormat("HH:mm");
+        manager.setFeedbackAlarm(new PendingFeedback.Alarm(){
+            @Override public void reminder(long id, long start, long deadline){
+                System.out.println("\n⏰ Feedback for your entry from "+clock.format(new Date(start))+" is due by "+clock.format(new Date(deadline))+" (option 11).");
             }
-        }
+            @Override public void expired(long id, long start){
+                System.out.println("\n⌛ The feedback window for your entry from "+clock.format(new Date(start))+" has closed; it will be asked again at next login.");
+            }
+        });
 
         int choice;
         do{
@@ -340,6 +5157,11 @@ public class MentalWellnessJournal3 {
             System.out.println("5. Generate full report");
             System.out.println("6. Delete specific entry");
             System.out.println("7. Save and exit");
+            System.out.println("8. Export entries (csv, jsonl or text file)");
+            System.out.println("9. Search feedback notes");
+            System.out.println("10. Performance metrics");
+            System.out.println("11. Give pending feedback");
+            System.out.println("12. Mood trends (streaks, 7/30 day moods, time to feel better)");
             System.out.print("Choose an option: ");
             try{ choice=Integer.parseInt(sc.nextLine()); } catch(Exception e){ choice=-1; }
 
@@ -353,7 +5175,7 @@ public class MentalWellnessJournal3 {
                     System.out.println("Detected Mood: "+moodDetected);
                     System.out.println("Suggestion: "+suggestion);
                     System.out.print("Add optional tags (space separated): ");
-                    List<String> tags = Arrays.stream(sc.nextLine().toLowerCase().split(" "))
+                    List<String> tags = Arrays.stream(sc.nextLine().toLowerCase(Locale.ROOT).split(" "))
                             .filter(t->!t.isEmpty()).collect(Collectors.toList());
 
                     JournalEntry newEntry = new JournalEntry(startTime,null,moodDetected,null,tags);
@@ -361,30 +5183,50 @@ public class MentalWellnessJournal3 {
 
                     String fb;
                     while(true){
-                        System.out.print("After suggestion, how do you feel now (feedback)? within 2 hours: ");
+                        System.out.print("After suggestion, how do you feel now (feedback)? within "+PendingFeedback.WINDOW_MILLIS/60_000+" minutes, or 'later': ");
                         fb=sc.nextLine().trim();
                         if(!fb.isEmpty()) break;
                         System.out.println("Feedback required!");
                     }
+                    if(fb.equalsIgnoreCase("later")){ System.out.println("Entry saved. You will be reminded before the window closes."); break; }
                     Date endTimeFb=new Date();
-                    newEntry.setFeedback(fb,endTimeFb);
+                    manager.setFeedback(newEntry,fb,endTimeFb);
                     System.out.println("Entry saved. Duration: "+getDurationString(newEntry.getDurationMinutes()*60*1000));
                     break;
 
-                case 2: manager.viewAll(); break;
+                case 2: manager.viewPaged(sc, System.out, Integer.getInteger("journal.pageSize", 20)); break;
                 case 3: manager.generateMoodStatistics(); break;
                 case 4:
                     System.out.println("Available moods: "+Arrays.toString(Mood.values()));
                     System.out.print("Enter mood to filter: ");
-                    try{ manager.filterByMood(Mood.valueOf(sc.nextLine().trim().toUpperCase())); }
+                    try{ manager.filterByMood(Mood.valueOf(sc.nextLine().trim().toUpperCase(Locale.ROOT))); }
                     catch(Exception e){ System.out.println("Invalid mood."); }
                     break;
                 case 5: manager.generateReport(); break;
                 case 6: manager.deleteEntryByIndex(sc); break;
                 case 7: 
                     manager.saveToFile(journalFile); 
+                    manager.closeLog();
                     System.out.println("✅ All data saved successfully. Goodbye!"); 
                     break;
+                case 8:
+                    System.out.print("Format (csv/jsonl/text): ");
+                    ExportFormat format;
+                    try { format = ExportFormat.valueOf(sc.nextLine().trim().toUpperCase(Locale.ROOT)); }
+                    catch (IllegalArgumentException e) { System.out.println("Invalid format."); break; }
+                    String exportFile = user.getUsername() + "_journal." + (format == ExportFormat.TEXT ? "export.txt" : format.name().toLowerCase(Locale.ROOT));
+                    try { manager.exportToFile(exportFile, format); System.out.println("Exported " + manager.size() + " entries to " + exportFile); }
+                    catch (IOException e) { System.out.println("Export failed: " + e.getMessage()); }
+                    break;
+                case 9:
+                    System.out.print("Search (words, \"phrase\", prefix*): ");
+                    manager.printEntries(manager.search(sc.nextLine(), 20), System.out);
+                    break;
+                case 10: System.out.print(Metrics.dump()); break;
+                case 11:
+                    if(!askPendingFeedback(sc, manager)) System.out.println("No pending feedback.");
+                    break;
+                case 12: manager.printTrends(System.out); break;
                 default: System.out.println("Invalid choice."); break;
             }
         } while(choice!=7);
@@ -0,0 +1,21 @@
+package journal;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/** MoodAnalyzer.analyzeMood on short inputs that hit early, late and no keyword. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AnalyzerBenchmark {
+    @Param({"I am so happy today", "a bit confused and uncertain about everything lately",
+            "nothing special happened at all today, just went to work and came back home"})
+    public String text;
+
+    @Benchmark
+    public Object analyzeMood() { return MoodAnalyzer.analyzeMood(text); }
+}
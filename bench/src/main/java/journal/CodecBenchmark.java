@@ -0,0 +1,37 @@
+package journal;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/** Per-entry costs: serialize/deserialize of one record and the XOR cipher on one line. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CodecBenchmark {
+    private JournalEntry entry;
+    private String plain;
+    private String encrypted;
+
+    @Setup
+    public void setup() {
+        entry = new JournalGenerator(42).next();
+        plain = entry.serialize();
+        encrypted = SimpleCipher.encrypt(plain);
+    }
+
+    @Benchmark
+    public String serialize() { return entry.serialize(); }
+
+    @Benchmark
+    public Object deserialize() { return JournalEntry.deserialize(encrypted); }
+
+    @Benchmark
+    public String encrypt() { return SimpleCipher.encrypt(plain); }
+
+    @Benchmark
+    public String decrypt() { return SimpleCipher.decrypt(encrypted); }
+}
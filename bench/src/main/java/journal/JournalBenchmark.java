@@ -0,0 +1,61 @@
+package journal;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/** Whole-journal operations over a generated journal of the given size. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+@State(Scope.Benchmark)
+public class JournalBenchmark {
+    @Param({"10000", "100000"})
+    public int entries;
+
+    private File dir;
+    private String textFile;
+    private String saveFile;
+    private JournalManager loaded;
+    private final PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("journal-bench").toFile();
+        textFile = new File(dir, "bench_journal.txt").getPath();
+        saveFile = new File(dir, "bench_save.txt").getPath();
+        new JournalGenerator(42).writeText(entries, textFile);
+        loaded = new JournalManager();
+        loaded.loadFromFile(textFile);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (File f : dir.listFiles()) f.delete();
+        dir.delete();
+    }
+
+    @Benchmark
+    public int loadFromFile() {
+        JournalManager m = new JournalManager();
+        m.loadFromFile(textFile);
+        return m.size();
+    }
+
+    @Benchmark
+    public void saveToFile() throws IOException { loaded.saveToFile(saveFile); }
+
+    @Benchmark
+    public void generateMoodStatistics() { loaded.generateMoodStatistics(discard); }
+
+    @Benchmark
+    public void filterByMood() { loaded.filterByMood(Mood.STRESSED, discard); }
+
+    // Repeated views are served from the render cache after the first
+    @Benchmark
+    public void viewAll() { loaded.viewAll(discard); }
+}
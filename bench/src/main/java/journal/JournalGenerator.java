@@ -0,0 +1,85 @@
+package journal;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Writes a synthetic journal in the current text format: one encrypted add record per entry,
+ * start times spread over the past year, a mix of moods, tags from a small pool and notes
+ * of a few words. A fixed seed keeps runs comparable.
+ *
+ * <pre>java -cp benchmarks.jar journal.JournalGenerator &lt;entries&gt; &lt;file&gt; [seed] [--binary]</pre>
+ */
+public class JournalGenerator {
+    static final String[] TAGS = {"work", "family", "sleep", "exercise", "friends", "study", "health", "money",
+        "travel", "food", "weather", "music", "reading", "commute", "meeting", "deadline", "weekend", "evening",
+        "morning", "partner", "kids", "pets", "gaming", "coffee", "meditation", "therapy", "doctor", "party",
+        "holiday", "rain"};
+    static final String[] WORDS = {"feeling", "better", "after", "a", "walk", "talked", "to", "someone", "still",
+        "tired", "but", "calmer", "now", "ate", "lunch", "slept", "well", "the", "meeting", "went", "fine",
+        "worried", "about", "tomorrow", "relaxed", "happy", "took", "deep", "breaths", "much", "less", "stressed"};
+    static final String[] FEELINGS = {"I am happy and excited", "feeling sad and lonely", "so angry and frustrated",
+        "really tired and sleepy", "stressed and anxious about work", "starving, so hungry", "calm and relaxed",
+        "confused and uncertain", "just an ordinary day"};
+
+    private final Random random;
+    private final long now = System.currentTimeMillis();
+
+    JournalGenerator(long seed) { this.random = new Random(seed); }
+
+    JournalEntry next() {
+        long start = now - (long) (random.nextDouble() * 365L * 24 * 60 * 60 * 1000);
+        Mood mood = MoodAnalyzer.analyzeMood(FEELINGS[random.nextInt(FEELINGS.length)]);
+        List<String> tags = new ArrayList<>();
+        for (int t = random.nextInt(4); t > 0; t--) tags.add(TAGS[random.nextInt(TAGS.length)]);
+        boolean pending = random.nextInt(20) == 0;
+        Date end = pending ? null : new Date(start + (5 + random.nextInt(240)) * 60_000L);
+        return new JournalEntry(new Date(start), end, mood, pending ? null : note(), tags);
+    }
+
+    private String note() {
+        StringBuilder sb = new StringBuilder();
+        for (int w = 3 + random.nextInt(12); w > 0; w--) sb.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        return sb.toString().trim();
+    }
+
+    List<JournalEntry> entries(int count) {
+        List<JournalEntry> list = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) list.add(next());
+        return list;
+    }
+
+    // Streams count entries to a text journal without holding them in memory
+    void writeText(int count, String filename) throws IOException {
+        FileTagCodes codes = new FileTagCodes(new TagDictionary());
+        try (Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(filename), StandardCharsets.UTF_8), 1 << 16)) {
+            for (int i = 0; i < count; i++) {
+                JournalEntry e = next();
+                e.assignId(i);
+                for (String record : JournalLog.entryRecords(e, codes)) {
+                    w.write(JournalLog.encode(record));
+                    w.write('\n');
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("usage: JournalGenerator <entries> <file> [seed] [--binary]");
+            return;
+        }
+        int count = Integer.parseInt(args[0]);
+        long seed = args.length > 2 && !args[2].startsWith("--") ? Long.parseLong(args[2]) : 42;
+        boolean binary = Arrays.asList(args).contains("--binary");
+        JournalGenerator g = new JournalGenerator(seed);
+        if (binary) {
+            String text = args[1] + ".txt.tmp";
+            g.writeText(count, text);
+            MappedJournal.convert(text, args[1]);
+            new File(text).delete();
+        } else g.writeText(count, args[1]);
+        System.out.println("Wrote " + count + " entries to " + args[1]);
+    }
+}
@@ -0,0 +1,118 @@
+package journal;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Self-checking queries against a scan of the same journal: indexed mood, tag and time-range
+ * queries and tag co-occurrence counts, on text, columnar and binary journals, after adds and
+ * deletes and after a reload. Also checks that the first query on a mapped binary journal
+ * decodes only the entries it returns. Prints one line per check and exits with status 1 if
+ * any failed.
+ *
+ * <pre>java -cp benchmarks.jar journal.QueryCheck [parent of the work dir]</pre>
+ */
+public class QueryCheck {
+    private final Path dir;
+    private final JournalGenerator generator = new JournalGenerator(11);
+    private final Random random = new Random(11);
+    private int failures;
+
+    QueryCheck(Path dir) { this.dir = dir; }
+
+    public static void main(String[] args) throws IOException {
+        // a fresh directory each run: files a run leaves behind would be replayed by the next
+        Path dir = args.length > 0 ? Files.createTempDirectory(Files.createDirectories(Paths.get(args[0])), "journal-query") : Files.createTempDirectory("journal-query");
+        QueryCheck c = new QueryCheck(dir);
+        c.liveJournal("text", new JournalManager());
+        c.liveJournal("columnar", new JournalManager(true));
+        c.binaryJournal();
+        System.out.println(c.failures == 0 ? "All query checks passed in " + dir : c.failures + " query check(s) failed; files left in " + dir);
+        System.exit(c.failures == 0 ? 0 : 1);
+    }
+
+    private void check(String what, boolean ok) {
+        System.out.println((ok ? "ok      " : "FAILED  ") + what);
+        if (!ok) failures++;
+    }
+
+    private void fill(JournalManager m, int adds, int deletes) {
+        for (int i = 0; i < adds; i++) m.addEntry(generator.next());
+        for (int i = 0; i < deletes; i++) m.deleteEntry(random.nextInt(m.size()));
+    }
+
+    private void liveJournal(String kind, JournalManager m) {
+        fill(m, 3000, 0);
+        compare(kind + ": before any query", m);
+        fill(m, 1000, 800); // the indexes are built now, so these go through the listeners
+        compare(kind + ": after adds and deletes", m);
+    }
+
+    private void binaryJournal() throws IOException {
+        Path file = dir.resolve("query.bin");
+        JournalManager w = new JournalManager();
+        fill(w, 20000, 0);
+        w.saveBinary(file.toString());
+
+        JournalManager m = new JournalManager();
+        m.loadFromFile(file.toString());
+        long before = Metrics.ENTRIES_PARSED.sum();
+        int hits = m.query(new JournalQuery().mood(Mood.STRESSED).tag("work")).size();
+        m.tagCooccurrence("work", "sleep");
+        check("binary: first query decodes only its hits", Metrics.ENTRIES_PARSED.sum() - before == hits);
+        compare("binary: after load", m);
+
+        m.openLog(file.toString(), FsyncPolicy.NEVER);
+        fill(m, 500, 500);
+        m.closeLog();
+        compare("binary: after adds and deletes", m);
+        JournalManager r = new JournalManager();
+        r.loadFromFile(file.toString());
+        compare("binary: after reload", r);
+    }
+
+    private void compare(String what, JournalManager m) {
+        List<JournalEntry> all = new ArrayList<>();
+        for (int i = 0; i < m.size(); i++) all.add(m.getEntry(i));
+        long day = 24L * 60 * 60 * 1000, now = System.currentTimeMillis();
+        List<JournalQuery> queries = List.of(
+                new JournalQuery().mood(Mood.HAPPY),
+                new JournalQuery().tag("work"),
+                new JournalQuery().tag("work").tag("sleep"),
+                new JournalQuery().mood(Mood.STRESSED).tag("work").between(new Date(now - 30 * day), new Date(now)),
+                new JournalQuery().between(new Date(now - 100 * day), new Date(now - 50 * day)),
+                new JournalQuery().tag("no such tag"));
+        boolean same = true;
+        for (JournalQuery q : queries) same &= ids(m.query(q)).equals(ids(scan(all, q)));
+        check(what + ": queries match a scan", same);
+
+        Map<String, Integer> counted = new TreeMap<>(), scanned = new TreeMap<>();
+        for (JournalEntry e : all) {
+            SortedSet<String> tags = new TreeSet<>(e.getTags());
+            for (String a : tags) for (String b : tags.tailSet(a)) if (!a.equals(b)) scanned.merge(a + "+" + b, 1, Integer::sum);
+        }
+        m.forEachTagPair((a, b, n) -> {
+            String x = m.tagName(a), y = m.tagName(b);
+            counted.put(x.compareTo(y) < 0 ? x + "+" + y : y + "+" + x, n);
+        });
+        check(what + ": tag pairs match a scan", counted.equals(scanned));
+        check(what + ": tagCooccurrence matches a scan", m.tagCooccurrence("work", "sleep") == scanned.getOrDefault("sleep+work", 0)
+                && m.tagCooccurrence("sleep", "work") == m.tagCooccurrence("work", "sleep") && m.tagCooccurrence("work", "no such tag") == 0);
+    }
+
+    private static List<JournalEntry> scan(List<JournalEntry> all, JournalQuery q) {
+        List<JournalEntry> out = new ArrayList<>();
+        for (JournalEntry e : all) {
+            long start = e.getStartTime().getTime();
+            if ((q.mood == null || e.getMood() == q.mood) && e.getTags().containsAll(q.tags) && start >= q.from && start <= q.to) out.add(e);
+        }
+        return out;
+    }
+
+    private static List<Long> ids(List<JournalEntry> entries) {
+        List<Long> ids = new ArrayList<>();
+        for (JournalEntry e : entries) ids.add(e.getId());
+        return ids;
+    }
+}
@@ -0,0 +1,190 @@
+package journal;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Self-checking round trips through the storage engine: text journals written, reopened,
+ * compacted and replayed; binary snapshots with log segments, including v1 snapshots, replay
+ * of a later generation whose compaction never finished, and cleanup of segments a renamed
+ * snapshot already covers. Each step compares the reloaded journal, ids included, with the
+ * live one. Prints one line per check and exits with status 1 if any failed.
+ *
+ * <pre>java -cp benchmarks.jar journal.StorageCheck [parent of the work dir]</pre>
+ */
+public class StorageCheck {
+    private final Path dir;
+    private final JournalGenerator generator = new JournalGenerator(7);
+    private final Random random = new Random(7);
+    private int failures;
+
+    StorageCheck(Path dir) { this.dir = dir; }
+
+    public static void main(String[] args) throws IOException {
+        // a fresh directory each run: files a run leaves behind would be replayed by the next
+        Path dir = args.length > 0 ? Files.createTempDirectory(Files.createDirectories(Paths.get(args[0])), "journal-check") : Files.createTempDirectory("journal-check");
+        StorageCheck c = new StorageCheck(dir);
+        c.textJournal();
+        c.binaryJournal();
+        c.v1Snapshot();
+        System.out.println(c.failures == 0 ? "All storage checks passed in " + dir : c.failures + " storage check(s) failed; files left in " + dir);
+        System.exit(c.failures == 0 ? 0 : 1);
+    }
+
+    private void check(String what, boolean ok) {
+        System.out.println((ok ? "ok      " : "FAILED  ") + what);
+        if (!ok) failures++;
+    }
+
+    // Adds, feedback edits and deletes in a fixed pseudo-random mix
+    private void mutate(JournalManager m, int count) {
+        for (int i = 0; i < count; i++) {
+            int op = random.nextInt(4);
+            if (op == 0 && m.size() > 0) m.deleteEntry(random.nextInt(m.size()));
+            else if (op == 1 && m.size() > 0) {
+                JournalEntry e = m.getEntry(random.nextInt(m.size()));
+                m.setFeedback(e, "feedback " + i, new Date(e.getStartTime().getTime() + 60_000));
+            } else m.addEntry(generator.next());
+        }
+    }
+
+    private static String dump(JournalManager m, boolean ids) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < m.size(); i++) {
+            JournalEntry e = m.getEntry(i);
+            if (ids) sb.append(e.getId()).append('|');
+            sb.append(e.serialize()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static JournalManager load(Path file) {
+        JournalManager m = new JournalManager();
+        m.loadFromFile(file.toString());
+        return m;
+    }
+
+    private static int generation(Path snapshot) throws IOException { return header(snapshot).getInt(16); }
+    private static int version(Path snapshot) throws IOException { return header(snapshot).getInt(4); }
+
+    private static ByteBuffer header(Path snapshot) throws IOException {
+        try (InputStream in = Files.newInputStream(snapshot)) {
+            return ByteBuffer.wrap(in.readNBytes(MappedJournal.HEADER_SIZE));
+        }
+    }
+
+    private static Path segment(Path snapshot, int generation) {
+        return Paths.get(MappedJournal.segmentFile(snapshot.toString(), generation, 0));
+    }
+
+    private void textJournal() throws IOException {
+        Path file = dir.resolve("text.txt");
+        JournalManager m = load(file);
+        m.openLog(file.toString(), FsyncPolicy.ON_SAVE);
+        for (int i = 0; i < 1500; i++) m.addEntry(generator.next());
+        m.saveToFile(file.toString());
+        check("text: reopen after save", dump(m, false).equals(dump(load(file), false)));
+
+        for (int i = 0; i < 1000; i++) m.deleteEntry(random.nextInt(m.size()));
+        mutate(m, 500);
+        long before = Files.size(file);
+        m.saveToFile(file.toString()); // well past the live entries: compacts
+        check("text: compaction shrinks the file", Files.size(file) < before);
+        check("text: reopen after compaction", dump(m, false).equals(dump(load(file), false)));
+
+        mutate(m, 300);
+        m.closeLog();
+        JournalManager r = load(file);
+        check("text: replay of records appended after compaction", dump(m, false).equals(dump(r, false)));
+        r.openLog(file.toString(), FsyncPolicy.EVERY_RECORD);
+        mutate(r, 200);
+        r.closeLog();
+        check("text: replay across sessions", dump(r, false).equals(dump(load(file), false)));
+    }
+
+    private void binaryJournal() throws IOException {
+        Path file = dir.resolve("binary.bin");
+        JournalManager m = new JournalManager();
+        for (int i = 0; i < 2000; i++) m.addEntry(generator.next());
+        m.saveBinary(file.toString());
+        check("binary: snapshot round trip", dump(m, true).equals(dump(load(file), true)));
+
+        m = load(file);
+        m.openLog(file.toString(), FsyncPolicy.NEVER);
+        mutate(m, 500);
+        m.saveToFile(file.toString());
+        check("binary: snapshot plus segment", dump(m, true).equals(dump(load(file), true)));
+        Path stale = dir.resolve("stale.log");
+        Files.copy(segment(file, 0), stale, StandardCopyOption.REPLACE_EXISTING);
+
+        mutate(m, 2000); // past the snapshot's entry count: rolls to generation 1 and compacts
+        m.closeLog();
+        check("binary: compaction wrote generation 1", generation(file) == 1);
+        check("binary: compaction deleted the covered segments", !Files.exists(segment(file, 0)));
+        String live = dump(m, true);
+        check("binary: reopen after compaction", live.equals(dump(load(file), true)));
+
+        // A crash after the rename but before the cleanup leaves a covered segment behind
+        Files.copy(stale, segment(file, 0));
+        check("binary: covered segment ignored", live.equals(dump(load(file), true)));
+        check("binary: covered segment deleted on load", !Files.exists(segment(file, 0)));
+
+        // A compaction that cannot write its snapshot leaves this generation's segments and the
+        // next one's; loading replays both in order
+        Path blocker = Files.createDirectory(Paths.get(file + ".tmp"));
+        m = load(file);
+        m.openLog(file.toString(), FsyncPolicy.NEVER);
+        mutate(m, 4000);
+        m.closeLog();
+        live = dump(m, true);
+        check("binary: failed compaction kept generation 1", generation(file) == 1);
+        check("binary: later generation has segments", Files.exists(segment(file, 2)));
+        check("binary: replay of a later generation", live.equals(dump(load(file), true)));
+
+        Files.delete(blocker);
+        m = load(file);
+        m.openLog(file.toString(), FsyncPolicy.NEVER);
+        mutate(m, 6000);
+        m.closeLog();
+        live = dump(m, true);
+        check("binary: recovered compaction moved past generation 2", generation(file) > 2);
+        check("binary: recovered compaction deleted older segments", !Files.exists(segment(file, 1)) && !Files.exists(segment(file, 2)));
+        check("binary: reopen after recovery", live.equals(dump(load(file), true)));
+    }
+
+    private void v1Snapshot() throws IOException {
+        Path file = dir.resolve("v1.bin");
+        JournalManager m = new JournalManager();
+        for (int i = 0; i < 1500; i++) m.addEntry(generator.next());
+        m.saveBinary(file.toString());
+        String written = dump(m, true);
+        downgrade(file);
+        check("v1: snapshot is version 1", version(file) == 1);
+        check("v1: loads with record numbers as ids", written.equals(dump(load(file), true)));
+
+        m = load(file);
+        m.openLog(file.toString(), FsyncPolicy.NEVER);
+        mutate(m, 300);
+        m.saveToFile(file.toString());
+        check("v1: snapshot plus segment", dump(m, true).equals(dump(load(file), true)));
+        mutate(m, 2000);
+        m.closeLog();
+        check("v1: compaction writes a version 2 snapshot", version(file) == MappedJournal.VERSION && generation(file) == 1);
+        check("v1: reopen after compaction", dump(m, true).equals(dump(load(file), true)));
+    }
+
+    // Rewrites a version 2 snapshot in the version 1 layout: 32-byte records without the id
+    private static void downgrade(Path snapshot) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(snapshot));
+        int count = in.getInt(8), records = in.getInt(24), tagIds = in.getInt(28), notes = in.getInt(32);
+        int shrink = count * (MappedJournal.RECORD_SIZE - MappedJournal.V1_RECORD_SIZE);
+        ByteBuffer out = ByteBuffer.allocate(in.capacity() - shrink);
+        out.put(in.slice(0, records));
+        for (int i = 0; i < count; i++) out.put(in.slice(records + i * MappedJournal.RECORD_SIZE, MappedJournal.V1_RECORD_SIZE));
+        out.put(in.slice(tagIds, in.capacity() - tagIds));
+        out.putInt(4, 1).putInt(28, tagIds - shrink).putInt(32, notes - shrink);
+        Files.write(snapshot, out.array());
+    }
+}